@@ -0,0 +1,33 @@
+package org.master.eit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The String based cleaning of {@link WoCoServer#cleanDocument(String)}. The server itself
+ * cleans documents in the same pass as the word count, see {@link WordCountBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CleaningBenchmark {
+
+    private final WoCoServer server = new WoCoServer(1);
+
+    @Benchmark
+    public String cleanDocument(Documents docs) {
+        return server.cleanDocument(docs.text);
+    }
+}
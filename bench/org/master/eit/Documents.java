@@ -0,0 +1,30 @@
+package org.master.eit;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The documents the benchmarks run on, generated from input.html like the documents of
+ * WoCoClient. The benchmarks have to be started from the root directory of the project.
+ */
+@State(Scope.Benchmark)
+public class Documents {
+
+    @Param({"1", "16", "256", "1024", "10240"})
+    public int sizeKiB;
+
+    public String text;
+    public byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        text = WoCoClient.generateDocument(sizeKiB * 1024, 42);
+        bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
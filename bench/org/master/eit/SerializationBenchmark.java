@@ -0,0 +1,59 @@
+package org.master.eit;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The serialization of the word counts of a document in both response formats, the way
+ * {@link WoCoServer#serializeResultForClient} does it: text into a new ByteBuilder, binary
+ * into a pooled buffer, which is reused here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    @Param({"false", "true"})
+    public boolean clean;
+
+    private WordCountTable wc;
+    private ByteBuffer binaryBuffer;
+
+    @Setup(Level.Trial)
+    public void count(Documents docs) {
+        wc = new WordCountTable();
+        WoCoServer.doWordCount(docs.bytes, 0, docs.bytes.length, wc, clean);
+        binaryBuffer = ByteBuffer.allocateDirect(ByteBuilder.sizeClass(wc.binarySize()));
+    }
+
+    @Benchmark
+    public ByteBuilder text() {
+        ByteBuilder sb = new ByteBuilder(wc.size() * 16 + 1);
+        wc.writeCsv(sb);
+        return sb;
+    }
+
+    @Benchmark
+    public ByteBuffer binary() {
+        binaryBuffer.clear();
+        wc.writeBinary(binaryBuffer);
+        binaryBuffer.flip();
+        return binaryBuffer;
+    }
+}
@@ -0,0 +1,58 @@
+package org.master.eit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The statistics kept for every document: recording a timing, from one and from several
+ * threads, and computing the figures {@link Utils} prints from the recorded timings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatsBenchmark {
+
+    private LatencyRecorder recorder;
+    private LatencyHistogram histogram;
+    private long nanos;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        recorder = new LatencyRecorder(Runtime.getRuntime().availableProcessors());
+        histogram = new LatencyHistogram();
+        for (int i = 0; i < 100000; i++) {
+            histogram.record(1000 + (i * 7919L) % 10000000);
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        recorder.record(nanos++ & 0xFFFFF);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        recorder.record(System.nanoTime() & 0xFFFFF);
+    }
+
+    @Benchmark
+    public float report() {
+        return Utils.calculateAverage(histogram) + Utils.calculateStd(histogram) + histogram.getPercentileMillis(99);
+    }
+}
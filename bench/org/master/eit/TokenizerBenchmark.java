@@ -0,0 +1,92 @@
+package org.master.eit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The tokenizer on its own, with the scalar loops and with the vectorized classification,
+ * with and without cleaning. The sink only sums up the word hashes, so the time is spent
+ * finding the words; doWordCount adds counting them in the table like the server does.
+ * scripts/tokenizer-throughput.sh converts the results into GB/s on one core.
+ *
+ * Before the measurement, both kernels tokenize the document and have to find the same
+ * words in the same order.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class TokenizerBenchmark {
+
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    @Param({"false", "true"})
+    public boolean clean;
+
+    private final HashSink sink = new HashSink();
+    private final WordCountTable wc = new WordCountTable();
+    private WordTokenizer tokenizer;
+    private WordTokenizer counter;
+
+    @Setup(Level.Trial)
+    public void create(Documents docs) {
+        ByteClassifier vectorized = WordTokenizer.defaultClassifier();
+        if (vectorized == null) {
+            throw new IllegalStateException("The Vector API is not available");
+        }
+        ByteClassifier classifier = kernel.equals("vector") ? vectorized : null;
+        tokenizer = new WordTokenizer(sink, classifier);
+        counter = new WordTokenizer(wc, classifier);
+
+        HashSink scalar = new HashSink();
+        new WordTokenizer(scalar, null).tokenize(docs.bytes, 0, docs.bytes.length, clean);
+        HashSink vector = new HashSink();
+        new WordTokenizer(vector, vectorized).tokenize(docs.bytes, 0, docs.bytes.length, clean);
+        if (scalar.words != vector.words || scalar.hash != vector.hash) {
+            throw new IllegalStateException("The vectorized tokenizer found other words than the scalar one");
+        }
+    }
+
+    @Benchmark
+    public long tokenize(Documents docs) {
+        tokenizer.tokenize(docs.bytes, 0, docs.bytes.length, clean);
+        return sink.hash;
+    }
+
+    @Benchmark
+    public int doWordCount(Documents docs) {
+        counter.tokenize(docs.bytes, 0, docs.bytes.length, clean);
+        int words = wc.size();
+        wc.reset();
+        return words;
+    }
+
+    /**
+     * Combines the words it receives in the order they arrive.
+     */
+    private static class HashSink implements WordSink {
+        private long words;
+        private long hash;
+
+        @Override
+        public void word(byte[] buf, int off, int len, int hash) {
+            words++;
+            this.hash = 31 * this.hash + hash + len;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.master.eit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The word count of a document as done by the server: on the raw bytes, with the cleaning
+ * in the same pass if enabled, into a table that is reset for the next document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WordCountBenchmark {
+
+    @Param({"false", "true"})
+    public boolean clean;
+
+    private final WordCountTable wc = new WordCountTable();
+
+    @Benchmark
+    public int doWordCount(Documents docs) {
+        WoCoServer.doWordCount(docs.bytes, 0, docs.bytes.length, wc, clean);
+        int words = wc.size();
+        wc.reset();
+        return words;
+    }
+}
@@ -0,0 +1,45 @@
+package org.master.eit;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Serves a server with one reactor in the process of a check, on a free port of localhost.
+ * The threads are daemons, they end with the check.
+ */
+class CheckServer {
+
+    /**
+     * @param server The server to pass the accepted connections to.
+     * @return The port the connections are accepted on.
+     */
+    static int start(WoCoServer server) throws IOException {
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress("localhost", 0));
+
+        Reactor reactor = new Reactor(server, false, 1024 * 1024);
+        Thread thread = new Thread(reactor, "reactor-check");
+        thread.setDaemon(true);
+        thread.start();
+
+        // accepted by another thread, a client waits for the answer to its hello while it is created
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel client = serverSocket.accept();
+                    client.configureBlocking(false);
+                    server.clientConnected();
+                    reactor.addClient(client);
+                }
+            } catch (IOException e) {
+                System.out.println("Check server stopped accepting: " + e);
+            }
+        }, "acceptor-check");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        return ((InetSocketAddress) serverSocket.getLocalAddress()).getPort();
+    }
+}
@@ -0,0 +1,60 @@
+package org.master.eit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Checks that the responses the client reads stay in step with its requests when a batch
+ * is refused before it is sent. Runs a server in this process, see {@link CheckServer}.
+ * Run by "ant check" and exits with status 1 on the first failure.
+ */
+public class ClientCheck {
+
+    public static void main(String[] args) throws Exception {
+        int port = CheckServer.start(new WoCoServer(1));
+        WoCoClient client = new WoCoClient("localhost", port, 0);
+
+        try {
+            client.getWordCounts(Collections.emptyList());
+            fail("an empty batch was sent");
+        } catch (IllegalArgumentException e) {
+            // expected, nothing was sent
+        }
+        try {
+            client.getTopWords(Collections.emptyList(), 1, false);
+            fail("an empty batch of top words was sent");
+        } catch (IllegalArgumentException e) {
+            // expected, nothing was sent
+        }
+
+        ArrayList<LinkedHashMap<String, Integer>> results = client.getWordCounts(Arrays.asList("b a b", "c"));
+        expect("batch", Arrays.asList(map("b", 2, "a", 1), map("c", 1)), results);
+        expect("document", Arrays.asList(map("d", 1)), Arrays.asList(client.getTopWords("d", 5, false)));
+        client.shutDown();
+
+        System.out.println("Client check passed: empty batches are refused, the responses stay in step.");
+    }
+
+    private static void expect(String name, List<LinkedHashMap<String, Integer>> expected,
+            List<LinkedHashMap<String, Integer>> actual) {
+        if (!expected.equals(actual)) {
+            fail(name + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static LinkedHashMap<String, Integer> map(Object... wordsAndCounts) {
+        LinkedHashMap<String, Integer> map = new LinkedHashMap<>();
+        for (int i = 0; i < wordsAndCounts.length; i += 2) {
+            map.put((String) wordsAndCounts[i], (Integer) wordsAndCounts[i + 1]);
+        }
+        return map;
+    }
+
+    private static void fail(String message) {
+        System.out.println("Client check failed: " + message);
+        System.exit(1);
+    }
+}
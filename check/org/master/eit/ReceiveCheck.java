@@ -0,0 +1,74 @@
+package org.master.eit;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+/**
+ * Checks that a compressed connection keeps being served when one chunk of received data
+ * inflates to several documents, each ending exactly at the end of a decompressed piece.
+ * Runs a server in this process, see {@link CheckServer}, once counting whole documents
+ * and once streaming them. Run by "ant check" and exits with status 1 on the first failure.
+ */
+public class ReceiveCheck {
+
+    // the documents and their separator fill one piece of the DeflateCodec
+    private static final int PIECE_SIZE = 64 * 1024;
+    private static final long TIMEOUT_MS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < PIECE_SIZE - 1) {
+            sb.append("abc ");
+        }
+        sb.setLength(PIECE_SIZE - 1);
+        String doc = sb.toString();
+        int expected = (PIECE_SIZE + 2) / 4;
+
+        for (boolean streaming : new boolean[]{false, true}) {
+            WoCoServer server = new WoCoServer(1);
+            if (streaming) {
+                server.enableStreaming();
+            }
+            String mode = streaming ? "streaming" : "documents";
+            Thread client = new Thread(() -> {
+                try {
+                    sendBackToBack(server, doc, expected, mode);
+                } catch (IOException e) {
+                    fail(mode + ": " + e);
+                }
+            });
+            client.setDaemon(true);
+            client.start();
+            client.join(TIMEOUT_MS);
+            if (client.isAlive()) {
+                fail(mode + ": no response within " + TIMEOUT_MS + " ms");
+            }
+        }
+
+        System.out.println("Receive check passed: back-to-back documents of one compressed piece each.");
+    }
+
+    /**
+     * Sends two documents in one flush of a compressed connection, then a third one to
+     * check that the connection is still served.
+     */
+    private static void sendBackToBack(WoCoServer server, String doc, int expected, String mode) throws IOException {
+        int port = CheckServer.start(server);
+        WoCoClient client = new WoCoClient("localhost", port, doc.length(), false, true);
+        if (!client.isCompressed()) {
+            fail(mode + ": compression was not negotiated");
+        }
+        client.getWordCountsPipelined(doc, 2, 2);
+        LinkedHashMap<String, Integer> top = client.getTopWords(doc, 1, false);
+        Integer count = top.get("abc");
+        if (count == null || count != expected) {
+            fail(mode + ": expected abc=" + expected + ", got " + top);
+        }
+        client.shutDown();
+    }
+
+    private static void fail(String message) {
+        System.out.println("Receive check failed: " + message);
+        System.exit(1);
+    }
+}
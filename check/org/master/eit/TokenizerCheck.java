@@ -0,0 +1,266 @@
+package org.master.eit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the vectorized tokenizer finds the same words as the scalar loops, with and
+ * without cleaning, for complete documents, documents fed in chunks and the parts the
+ * {@link ParallelWordCounter} counts. Run by "ant check", which is part of the default
+ * build, and exits with status 1 on the first mismatch.
+ *
+ * The inputs are random documents as well as constructed ones that target the block walk:
+ * words and tags that straddle block boundaries, letter runs around the length of the
+ * short run path, bytes next to the letter ranges and the empty document. Every word also
+ * has to arrive with the hash the sink contract promises, String.hashCode() of the word.
+ */
+public class TokenizerCheck {
+
+    private static final int BLOCK = ByteClassifier.BLOCK_SIZE;
+    // bytes around the letter ranges, which the classification must not count as letters
+    private static final String EDGES = "@[`{AZaz \t\n<>/=\"'-.,0123456789";
+
+    private final ByteClassifier vector;
+    private int cases;
+
+    private TokenizerCheck(ByteClassifier vector) {
+        this.vector = vector;
+    }
+
+    public static void main(String[] args) {
+        ByteClassifier vector = WordTokenizer.defaultClassifier();
+        if (vector == null) {
+            System.out.println("Tokenizer check skipped, the Vector API is not available.");
+            return;
+        }
+
+        TokenizerCheck check = new TokenizerCheck(vector);
+        check.emptyDocument();
+        check.blockBoundaries();
+        check.tagsAcrossBlocks();
+        check.adversarial();
+        check.random(new Random(42), 20000);
+
+        System.out.println("Tokenizer check passed: " + check.cases + " cases, vectorized ("
+                + vector.describe() + ") and scalar tokenizer agree.");
+    }
+
+    /**
+     * The empty document yields a single empty word, like String.split().
+     */
+    private void emptyDocument() {
+        byte[] empty = new byte[0];
+        for (boolean clean : new boolean[]{false, true}) {
+            List<String> expected = Arrays.asList("");
+            expect("empty document, clean=" + clean, expected, words(null, empty, 0, 0, clean, 0));
+            expect("empty document, clean=" + clean, expected, words(vector, empty, 0, 0, clean, 0));
+        }
+        compare("empty document in a buffer", new byte[3 * BLOCK], BLOCK, 0);
+    }
+
+    /**
+     * A word of every length from 1 to 3 blocks ending at every position around the end of
+     * the first and the second block, at an aligned and a misaligned document offset.
+     */
+    private void blockBoundaries() {
+        for (int off : new int[]{0, 5}) {
+            for (int len = 1; len <= 3 * BLOCK; len++) {
+                for (int end = BLOCK - 9; end <= 2 * BLOCK + 9; end++) {
+                    int start = end - len;
+                    if (start < 0) {
+                        continue;
+                    }
+                    byte[] doc = filled(off + 3 * BLOCK, ' ');
+                    // some tags before the word, so cleaning keeps it
+                    put(doc, off, "<p>");
+                    for (int i = Math.max(start, 3); i < end; i++) {
+                        doc[off + i] = (byte) ('a' + (i % 26));
+                    }
+                    compare("word [" + start + "," + end + ") at offset " + off, doc, off, 3 * BLOCK);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tags that open in one block and close in a later one, nested and unbalanced, with
+     * words directly before and after them.
+     */
+    private void tagsAcrossBlocks() {
+        for (int open = BLOCK - 12; open < BLOCK + 4; open++) {
+            for (int length : new int[]{1, 2, 9, BLOCK, BLOCK + 1, 2 * BLOCK + 3}) {
+                byte[] doc = filled(4 * BLOCK, ' ');
+                put(doc, 0, "<b>start ");
+                put(doc, open - 4, "word");
+                doc[open] = '<';
+                int close = Math.min(open + length, doc.length - 6);
+                put(doc, open + 1, "aa bb<cc>dd");
+                doc[close] = '>';
+                put(doc, close + 1, "end");
+                compare("tag [" + open + "," + close + "]", doc, 0, doc.length);
+
+                // a '>' without an open tag and a tag that is never closed
+                byte[] unbalanced = doc.clone();
+                unbalanced[open] = '>';
+                compare("stray '>' at " + open, unbalanced, 0, doc.length);
+                unbalanced[close] = 'x';
+                compare("unclosed tag at " + open, unbalanced, 0, doc.length);
+            }
+        }
+    }
+
+    /**
+     * Documents made of a single kind of byte, letter runs around the short run length and
+     * bytes next to the letter ranges or above 0x7f.
+     */
+    private void adversarial() {
+        for (char c : new char[]{'a', 'Z', ' ', '<', '>', '@', '[', '`', '{', (char) 0x80, (char) 0xff, (char) 0xc1}) {
+            for (int len : new int[]{BLOCK - 1, BLOCK, BLOCK + 1, 3 * BLOCK + 7}) {
+                compare("only 0x" + Integer.toHexString(c) + " x" + len, filled(len, c), 0, len);
+            }
+        }
+
+        // runs of 1 to 17 letters separated by one space, around the 8 byte short runs
+        for (int run = 1; run <= 17; run++) {
+            StringBuilder sb = new StringBuilder("<i>");
+            while (sb.length() < 5 * BLOCK) {
+                for (int i = 0; i < run; i++) {
+                    sb.append((char) ('A' + (sb.length() % 26)));
+                }
+                sb.append(' ');
+            }
+            byte[] doc = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+            compare("runs of " + run + " letters", doc, 0, doc.length);
+        }
+
+        // every byte value between letters, lower cased letters must not be confused with them
+        for (int b = 0; b < 256; b++) {
+            byte[] doc = filled(2 * BLOCK + 3, 'q');
+            for (int i = 3; i < doc.length; i += 5) {
+                doc[i] = (byte) b;
+            }
+            put(doc, 0, "<a>");
+            compare("separator 0x" + Integer.toHexString(b), doc, 0, doc.length);
+        }
+    }
+
+    /**
+     * Random documents over an alphabet that favors the interesting bytes, with some long
+     * letter runs and some completely random bytes.
+     */
+    private void random(Random random, int count) {
+        for (int n = 0; n < count; n++) {
+            int len = random.nextInt(n % 10 == 0 ? 5000 : 400);
+            byte[] doc = new byte[len];
+            for (int i = 0; i < len; i++) {
+                if (random.nextInt(20) == 0) {
+                    doc[i] = (byte) random.nextInt(256);
+                } else if (random.nextInt(200) == 0) {
+                    int run = Math.min(len - i, random.nextInt(150));
+                    for (int k = 0; k < run; k++) {
+                        doc[i + k] = (byte) ('a' + k % 26);
+                    }
+                    i += Math.max(0, run - 1);
+                } else {
+                    doc[i] = (byte) EDGES.charAt(random.nextInt(EDGES.length()));
+                }
+            }
+            compare("random document " + n, doc, 0, len);
+        }
+    }
+
+    /**
+     * Tokenizes a document with both paths, in one piece, in chunks and in parts, and
+     * exits if they find different words.
+     */
+    private void compare(String name, byte[] doc, int off, int len) {
+        for (boolean clean : new boolean[]{false, true}) {
+            String label = name + ", clean=" + clean;
+            expect(label, words(null, doc, off, len, clean, 0), words(vector, doc, off, len, clean, 0));
+            for (int chunk : new int[]{1, 7, BLOCK - 1, BLOCK + 1, 3 * BLOCK}) {
+                expect(label + ", chunks of " + chunk, words(null, doc, off, len, clean, chunk),
+                        words(vector, doc, off, len, clean, chunk));
+            }
+            expect(label + ", in parts", parts(null, doc, off, len, clean), parts(vector, doc, off, len, clean));
+        }
+    }
+
+    private void expect(String name, List<String> expected, List<String> actual) {
+        cases++;
+        if (!expected.equals(actual)) {
+            System.out.println("Tokenizer check failed: " + name);
+            System.out.println("  scalar:     " + expected);
+            System.out.println("  vectorized: " + actual);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param chunk Size of the chunks the document is fed in, 0 to tokenize it in one piece.
+     * @return The words the tokenizer passes to its sink, in order.
+     */
+    private static List<String> words(ByteClassifier classifier, byte[] doc, int off, int len, boolean clean, int chunk) {
+        List<String> words = new ArrayList<>();
+        WordTokenizer tokenizer = new WordTokenizer(sink(words), classifier);
+        if (chunk == 0) {
+            tokenizer.tokenize(doc, off, len, clean);
+        } else {
+            tokenizer.reset(clean);
+            for (int i = 0; i < len; i += chunk) {
+                tokenizer.feed(doc, off + i, Math.min(chunk, len - i));
+            }
+            tokenizer.finish();
+        }
+        return words;
+    }
+
+    /**
+     * Tokenizes a document in two parts split at the first space after its middle, like
+     * the {@link ParallelWordCounter} does.
+     */
+    private static List<String> parts(ByteClassifier classifier, byte[] doc, int off, int len, boolean clean) {
+        List<String> words = new ArrayList<>();
+        WordTokenizer tokenizer = new WordTokenizer(sink(words), classifier);
+        int depth = clean ? WordTokenizer.initialTagDepth(doc, off, len) : 0;
+        int split = off + len / 2;
+        while (split < off + len && doc[split] != ' ') {
+            split++;
+        }
+        tokenizer.tokenizePart(doc, off, split - off, clean, depth);
+        // the tag depth at the split, the second part is only compared if it starts outside a tag
+        int splitDepth = depth;
+        for (int i = off; i < split && clean; i++) {
+            if (doc[i] == '<') {
+                splitDepth++;
+            } else if (doc[i] == '>' && splitDepth > 0) {
+                splitDepth--;
+            }
+        }
+        tokenizer.tokenizePart(doc, split, off + len - split, clean, splitDepth);
+        return words;
+    }
+
+    private static WordSink sink(List<String> words) {
+        return (buf, off, len, hash) -> {
+            String word = new String(buf, off, len, StandardCharsets.ISO_8859_1);
+            if (word.hashCode() != hash) {
+                throw new IllegalStateException("Wrong hash for \"" + word + "\": " + hash);
+            }
+            words.add(word);
+        };
+    }
+
+    private static byte[] filled(int len, char c) {
+        byte[] doc = new byte[len];
+        Arrays.fill(doc, (byte) c);
+        return doc;
+    }
+
+    private static void put(byte[] doc, int at, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(bytes, 0, doc, at, Math.min(bytes.length, doc.length - at));
+    }
+}
@@ -0,0 +1,12 @@
+#!/bin/bash
+# Runs the JMH microbenchmarks of the counting core: the cleaning, the word count and the
+# serialization of documents of 1 KiB to 10 MiB generated from input.html, with and
+# without cleaning, and the recording of the statistics. The GC profiler reports the
+# allocations of every benchmark, "gc.alloc.rate.norm" is the number of bytes allocated
+# per operation.
+#
+# Usage: scripts/microbenchmarks.sh [<benchmark regex>] [<JMH options...>]
+# e.g. scripts/microbenchmarks.sh WordCount -p sizeKiB=16,1024
+# Run from the root of the repository after "ant bench".
+
+java -jar jars/benchmarks.jar -prof gc "$@"
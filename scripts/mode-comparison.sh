@@ -0,0 +1,60 @@
+#!/bin/bash
+# Compares the reactor mode of the server with the thread-per-connection mode. Next to
+# the active clients, a number of idle connections is kept open for the whole run. Prints
+# one ";"-separated line per mode:
+# <mode>;<idle connections>;<active clients>;<total throughput [ops/s]>;<p99 [ms]>
+# where the p99 is the highest p99 reported by any of the active clients.
+#
+# The server only uses virtual threads when it runs on Java 21 or later, set JAVA to the
+# java binary to use for the server. Many idle connections need a high enough "ulimit -n".
+#
+# Usage: scripts/mode-comparison.sh [<idle connections>] [<active clients>] [<threads>] [<documentsize(KiB)>] [<opcount(x1000)>]
+# Run from the root of the repository after "ant clean dist".
+
+IDLE=${1:-1000}
+ACTIVE=${2:-16}
+THREADS=${3:-4}
+DOC_SIZE=${4:-16}
+OPS=${5:-1}
+JAVA=${JAVA:-java}
+
+HOST=localhost
+PORT=3000
+CLEANING=true
+OUT=$(mktemp -d)
+
+for MODE in reactors threads; do
+    $JAVA -jar jars/WoCoServer.jar $HOST $PORT $CLEANING "$THREADS" --mode=$MODE > "$OUT/server-$MODE.log" 2>&1 &
+    SERVER=$!
+    sleep 1
+
+    # idle connections that never send a document
+    IDLE_FDS=()
+    for C in $(seq 1 "$IDLE"); do
+        exec {FD}<>/dev/tcp/$HOST/$PORT
+        IDLE_FDS+=("$FD")
+    done
+
+    CLIENTS=()
+    for C in $(seq 1 "$ACTIVE"); do
+        java -jar jars/WoCoClient.jar $HOST $PORT "$DOC_SIZE" "$OPS" -1 "$ACTIVE" > "$OUT/client-$MODE-$C.log" 2>&1 &
+        CLIENTS+=($!)
+    done
+    wait "${CLIENTS[@]}"
+
+    for FD in "${IDLE_FDS[@]}"; do
+        exec {FD}>&-
+    done
+
+    # every client prints "Total time [s], Throughput [ops/s]: <time>, <throughput>" and
+    # its response time percentiles as "<percentile>,<time>"
+    TPUT=$(grep -h "^Total time" "$OUT"/client-$MODE-*.log | awk -F', ' '{ sum += $NF } END { print sum }')
+    P99=$(grep -h "^99," "$OUT"/client-$MODE-*.log | awk -F',' '$2 > max { max = $2 } END { print max }')
+    echo "$MODE;$IDLE;$ACTIVE;$TPUT;$P99"
+
+    sleep 1
+    kill $SERVER
+    wait $SERVER 2>/dev/null
+done
+
+rm -r "$OUT"
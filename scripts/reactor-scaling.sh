@@ -0,0 +1,40 @@
+#!/bin/bash
+# Measures how the server throughput scales with the number of reactor threads.
+# For every reactor count, a fresh server is started and the given number of clients
+# send their documents in parallel. Prints one ";"-separated line per reactor count:
+# <reactors>;<clients>;<total throughput [ops/s]>
+#
+# Usage: scripts/reactor-scaling.sh [<clients>] [<documentsize(KiB)>] [<opcount(x1000)>] [<reactor counts...>]
+# Run from the root of the repository after "ant clean dist".
+
+CLIENTS=${1:-64}
+DOC_SIZE=${2:-16}
+OPS=${3:-1}
+shift $(( $# < 3 ? $# : 3 ))
+REACTORS=${@:-1 2 4 8}
+
+HOST=localhost
+PORT=3000
+CLEANING=true
+THREADS=1
+OUT=$(mktemp -d)
+
+for R in $REACTORS; do
+    java -jar jars/WoCoServer.jar $HOST $PORT $CLEANING $THREADS --reactors=$R > "$OUT/server-$R.log" 2>&1 &
+    SERVER=$!
+    sleep 1
+
+    for C in $(seq 1 "$CLIENTS"); do
+        java -jar jars/WoCoClient.jar $HOST $PORT "$DOC_SIZE" "$OPS" -1 "$CLIENTS" > "$OUT/client-$R-$C.log" 2>&1 &
+    done
+    wait $(jobs -p | grep -v "^$SERVER$")
+
+    # every client prints "Total time [s], Throughput [ops/s]: <time>, <throughput>"
+    TPUT=$(grep -h "^Total time" "$OUT"/client-$R-*.log | awk -F', ' '{ sum += $NF } END { print sum }')
+    echo "$R;$CLIENTS;$TPUT"
+
+    kill $SERVER
+    wait $SERVER 2>/dev/null
+done
+
+rm -r "$OUT"
@@ -0,0 +1,50 @@
+#!/bin/bash
+# Compares the tail latency of the pinned and the work-stealing scheduler with a mix of
+# heavy clients (large documents) and light clients (small documents). Prints one
+# ";"-separated line per scheduler:
+# <scheduler>;<p99 of light clients [ms]>;<p99 of heavy clients [ms]>
+# where the p99 of a group is the highest p99 reported by any of its clients.
+#
+# Usage: scripts/scheduler-comparison.sh [<threads>] [<light clients>] [<heavy clients>] [<opcount(x1000)>]
+# Run from the root of the repository after "ant clean dist".
+
+THREADS=${1:-4}
+LIGHT=${2:-12}
+HEAVY=${3:-4}
+OPS=${4:-1}
+
+LIGHT_SIZE=16
+HEAVY_SIZE=1024
+
+HOST=localhost
+PORT=3000
+CLEANING=true
+OUT=$(mktemp -d)
+
+for SCHEDULER in pinned stealing; do
+    java -jar jars/WoCoServer.jar $HOST $PORT $CLEANING "$THREADS" --scheduler=$SCHEDULER > "$OUT/server-$SCHEDULER.log" 2>&1 &
+    SERVER=$!
+    sleep 1
+
+    CLIENTS=$((LIGHT + HEAVY))
+    for C in $(seq 1 "$HEAVY"); do
+        java -jar jars/WoCoClient.jar $HOST $PORT $HEAVY_SIZE "$OPS" -1 $CLIENTS > "$OUT/heavy-$SCHEDULER-$C.log" 2>&1 &
+    done
+    for C in $(seq 1 "$LIGHT"); do
+        java -jar jars/WoCoClient.jar $HOST $PORT $LIGHT_SIZE "$OPS" -1 $CLIENTS > "$OUT/light-$SCHEDULER-$C.log" 2>&1 &
+    done
+    wait $(jobs -p | grep -v "^$SERVER$")
+
+    # every client prints its response time percentiles as "<percentile>,<time>"
+    LIGHT_P99=$(grep -h "^99," "$OUT"/light-$SCHEDULER-*.log | awk -F',' '$2 > max { max = $2 } END { print max }')
+    HEAVY_P99=$(grep -h "^99," "$OUT"/heavy-$SCHEDULER-*.log | awk -F',' '$2 > max { max = $2 } END { print max }')
+    echo "$SCHEDULER;$LIGHT_P99;$HEAVY_P99"
+
+    # the server prints the worker utilization once the last client has disconnected
+    sleep 1
+    kill $SERVER
+    wait $SERVER 2>/dev/null
+    grep -h "^Worker utilization" "$OUT/server-$SCHEDULER.log" | tail -1
+done
+
+rm -r "$OUT"
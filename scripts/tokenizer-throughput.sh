@@ -0,0 +1,24 @@
+#!/bin/bash
+# Measures the throughput of the tokenizer on one core, with the scalar loops and with the
+# vectorized classification, with and without cleaning. Prints one ";"-separated line per
+# combination:
+# <benchmark>;<kernel>;<cleaning>;<documentsize(KiB)>;<throughput [GB/s]>
+# The vectorized kernel needs Java 16 or later, see src/org/master/eit/ByteClassifier.java.
+#
+# Usage: scripts/tokenizer-throughput.sh [<documentsize(KiB)>...]
+# e.g. scripts/tokenizer-throughput.sh 16 1024
+# Run from the root of the repository after "ant bench".
+
+SIZES=${*:-16 1024}
+OUT=$(mktemp -d)
+
+java -jar jars/benchmarks.jar TokenizerBenchmark -p sizeKiB="$(echo $SIZES | tr ' ' ',')" \
+    -rf csv -rff "$OUT/results.csv" > "$OUT/jmh.log" 2>&1 || { cat "$OUT/jmh.log"; exit 1; }
+
+# the scores are in microseconds per document, so bytes per microsecond / 1000 are GB/s
+tail -n +2 "$OUT/results.csv" | tr -d '"' | awk -F, '{
+    n = split($1, name, ".")
+    printf "%s;%s;%s;%s;%.2f\n", name[n], $9, $8, $10, $10 * 1024 / $5 / 1000
+}'
+
+rm -r "$OUT"
@@ -0,0 +1,82 @@
+package org.master.eit;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Classifies a block with the widest byte vectors of the CPU, e.g. two 32 byte vectors per
+ * block with AVX2 or one 64 byte vector with AVX-512. Every class takes one or two lane
+ * wise comparisons, and the resulting masks are packed into the bits of a long.
+ *
+ * VectorMask.toLong() is not compiled to a vector instruction before Java 19 and is slower
+ * than the scalar loops, so the masks are packed with vector arithmetic instead: every byte
+ * of the mask becomes 0 or 1, a multiplication moves the 8 bytes of every long lane into
+ * the 8 top bits of the lane, and the lanes are shifted into place and combined.
+ *
+ * Only compiled on Java 16 or later, see {@link ByteClassifier}.
+ */
+public class VectorByteClassifier implements ByteClassifier {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+
+    // byte k of a long lane, 0 or 1, ends up in bit 56 + k of the product
+    private static final long GATHER_BITS = 0x0102040810204080L;
+
+    private static final ByteVector ZEROS = ByteVector.zero(SPECIES);
+    private static final ByteVector ONES = ByteVector.broadcast(SPECIES, (byte) 1);
+    // the bits of long lane i are the bits 8 * i to 8 * i + 7 of the mask
+    private static final LongVector LANE_SHIFTS = LongVector.zero(LONGS).addIndex(8);
+
+    /**
+     * @throws UnsupportedOperationException if the vectors of the CPU are narrower than 128
+     * bits, in which case the Vector API would not be faster than the scalar loops.
+     */
+    public VectorByteClassifier() {
+        if (SPECIES.vectorBitSize() < 128 || SPECIES.length() > BLOCK_SIZE) {
+            throw new UnsupportedOperationException("No suitable vector size: " + SPECIES);
+        }
+    }
+
+    @Override
+    public void classify(byte[] buf, int off, long[] masks) {
+        long letters = 0;
+        long spaces = 0;
+        long tags = 0;
+        for (int i = 0; i < BLOCK_SIZE; i += SPECIES.length()) {
+            ByteVector v = ByteVector.fromArray(SPECIES, buf, off + i);
+            // same as the scalar loops: setting the 0x20 bit lower cases 'A'-'Z', and bytes
+            // above 0x7f stay negative, so they are no letters
+            ByteVector lc = v.or((byte) 0x20);
+            VectorMask<Byte> letter = lc.compare(VectorOperators.GE, (byte) 'a').and(lc.compare(VectorOperators.LE, (byte) 'z'));
+            VectorMask<Byte> space = v.compare(VectorOperators.EQ, (byte) ' ');
+            VectorMask<Byte> tag = v.compare(VectorOperators.EQ, (byte) '<').or(v.compare(VectorOperators.EQ, (byte) '>'));
+            letters |= toBits(letter) << i;
+            spaces |= toBits(space) << i;
+            tags |= toBits(tag) << i;
+        }
+        masks[LETTERS] = letters;
+        masks[SPACES] = spaces;
+        masks[TAGS] = tags;
+    }
+
+    /**
+     * Same as mask.toLong(). Reinterpreting the bytes as longs puts lane 0 into the lowest
+     * byte of the first long.
+     */
+    private static long toBits(VectorMask<Byte> mask) {
+        return ZEROS.blend(ONES, mask).reinterpretAsLongs()
+                .mul(GATHER_BITS)
+                .lanewise(VectorOperators.LSHR, 56)
+                .lanewise(VectorOperators.LSHL, LANE_SHIFTS)
+                .reduceLanes(VectorOperators.OR);
+    }
+
+    @Override
+    public String describe() {
+        return "vector, " + SPECIES.vectorBitSize() + " bit";
+    }
+}
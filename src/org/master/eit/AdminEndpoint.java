@@ -0,0 +1,99 @@
+package org.master.eit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the current metrics of the server over HTTP on an admin port, in the Prometheus
+ * text format, e.g. "curl http://localhost:9100/metrics". Unlike the statistics printed
+ * after an experiment, the metrics can be scraped at any time while clients are connected.
+ *
+ * The endpoint runs on a thread of its own and answers one request at a time with plain
+ * blocking I/O; scrapes are rare, so it never competes with the reactors or the workers.
+ */
+public class AdminEndpoint implements Runnable {
+
+    public static final String PATH = "/metrics";
+
+    // a client that does not send its request within this time is dropped
+    private static final int READ_TIMEOUT = 5000;
+
+    private final WoCoServer server;
+    private final ServerSocket socket;
+
+    /**
+     * @param server  The server whose metrics are served.
+     * @param address Address and port to listen on.
+     * @throws IOException if the port cannot be bound.
+     */
+    public AdminEndpoint(WoCoServer server, InetSocketAddress address) throws IOException {
+        this.server = server;
+        this.socket = new ServerSocket();
+        socket.bind(address);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket client = socket.accept()) {
+                client.setSoTimeout(READ_TIMEOUT);
+                handle(client);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Answers one HTTP request: a GET of {@link #PATH} with the metrics, anything else with
+     * an error status.
+     */
+    private void handle(Socket client) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        // the headers are not needed
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+        }
+
+        String[] parts = requestLine.split(" ");
+        String method = parts[0];
+        String path = (parts.length > 1) ? parts[1] : "";
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            respond(client, "405 Method Not Allowed", "Only GET is supported\n", true);
+        } else if (!path.equals(PATH)) {
+            respond(client, "404 Not Found", "Metrics are served at " + PATH + "\n", true);
+        } else {
+            respond(client, "200 OK", server.metrics(), method.equals("GET"));
+        }
+    }
+
+    private static void respond(Socket client, String status, String body, boolean withBody) throws IOException {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+
+        OutputStream out = client.getOutputStream();
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        if (withBody) {
+            out.write(content);
+        }
+        out.flush();
+    }
+}
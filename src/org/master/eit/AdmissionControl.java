@@ -0,0 +1,160 @@
+package org.master.eit;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of tasks waiting for the worker threads, so the reactors cannot take
+ * in documents faster than the workers count them and the memory held by waiting documents
+ * stays bounded under overload.
+ *
+ * When the queue the documents of a client go to is full, the server either stops reading
+ * from the connection until the queue has drained to half of the limit, which pushes back
+ * on the client through TCP flow control, or it rejects further documents of the client
+ * right away with an error response, see {@link Protocol}. The queue is checked after
+ * every read, so it can exceed the limit by the documents of one read per connection. A
+ * paused connection that is closed by the client stays in the list of paused connections
+ * until its queue has drained.
+ */
+public class AdmissionControl {
+
+    private final DocumentScheduler scheduler;
+    private final int limit;
+    private final boolean reject;
+
+    // connections that stopped reading because their queue was full
+    private final ConcurrentLinkedQueue<ClientSession> pausedSessions;
+    private final AtomicInteger pausedCount;
+
+    // totals since the start of the server, the report covers the time since the last reset
+    private final LongAdder pauses;
+    private final LongAdder rejections;
+    private final AtomicInteger peakPending;
+    private volatile long pausesAtReset;
+    private volatile long rejectionsAtReset;
+
+    /**
+     * @param scheduler The scheduler whose queues are bounded.
+     * @param limit     Maximum number of tasks waiting per worker.
+     * @param reject    Whether documents are rejected when the queue is full, otherwise the
+     *                  connection stops reading.
+     */
+    public AdmissionControl(DocumentScheduler scheduler, int limit, boolean reject) {
+        this.scheduler = scheduler;
+        this.limit = limit;
+        this.reject = reject;
+        this.pausedSessions = new ConcurrentLinkedQueue<>();
+        this.pausedCount = new AtomicInteger();
+        this.pauses = new LongAdder();
+        this.rejections = new LongAdder();
+        this.peakPending = new AtomicInteger();
+    }
+
+    /**
+     * @return Whether documents are rejected when the queue is full.
+     */
+    public boolean isRejecting() {
+        return reject;
+    }
+
+    /**
+     * Decides whether a complete request of a client is scheduled. Only called by the
+     * thread receiving the data of the client.
+     *
+     * @param session   The connection the request was received from.
+     * @param documents Number of documents in the request.
+     * @return False if the request has to be rejected.
+     */
+    public boolean admit(ClientSession session, int documents) {
+        if (reject && scheduler.isFull(session.getClientId(), limit)) {
+            rejections.add(documents);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records the queue depth and, unless documents are rejected, stops reading from a
+     * connection if the queue its documents go to is full. Called after the data received
+     * from the connection has been handed over to the workers.
+     *
+     * @param session The connection the data was received from.
+     */
+    public void afterReceive(ClientSession session) {
+        int pending = scheduler.getPendingTasks();
+        peakPending.accumulateAndGet(pending, Math::max);
+
+        if (reject || !scheduler.isFull(session.getClientId(), limit) || !session.pauseReading()) {
+            return;
+        }
+        pauses.increment();
+        pausedCount.incrementAndGet();
+        pausedSessions.add(session);
+
+        // the workers may have drained the queue before the session was added, in which
+        // case none of them would resume it
+        resumeSessions();
+    }
+
+    /**
+     * Resumes reading from the paused connections whose queue has drained to half of the
+     * limit. Called by the workers after every task, the check is cheap while no connection
+     * is paused.
+     */
+    public void resumeSessions() {
+        if (pausedSessions.isEmpty()) {
+            return;
+        }
+        int resumeBelow = Math.max(1, limit / 2);
+        for (Iterator<ClientSession> it = pausedSessions.iterator(); it.hasNext(); ) {
+            ClientSession session = it.next();
+            if (!scheduler.isFull(session.getClientId(), resumeBelow)) {
+                it.remove();
+                if (session.resumeReading()) {
+                    pausedCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of connections that currently do not read.
+     */
+    public int getPausedConnections() {
+        return pausedCount.get();
+    }
+
+    /**
+     * @return Number of times a connection stopped reading since the start of the server.
+     */
+    public long getPauses() {
+        return pauses.sum();
+    }
+
+    /**
+     * @return Number of rejected documents since the start of the server.
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * Starts a new measurement interval for the report.
+     */
+    public void resetCounters() {
+        pausesAtReset = pauses.sum();
+        rejectionsAtReset = rejections.sum();
+        peakPending.set(0);
+    }
+
+    /**
+     * @return The figures since the last reset as "Admission control: limit,peak pending
+     * tasks,pauses,rejections".
+     */
+    public String report() {
+        return "Admission control: " + limit + "," + peakPending.get() + "," + (pauses.sum() - pausesAtReset)
+                + "," + (rejections.sum() - rejectionsAtReset);
+    }
+}
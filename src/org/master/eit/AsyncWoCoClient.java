@@ -0,0 +1,405 @@
+package org.master.eit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking client for the WoCoServer. Requests return a CompletableFuture right away
+ * and can be submitted from any number of threads; a single I/O thread writes them and
+ * reads the responses over a pool of connections.
+ *
+ * Every request goes to the connection with the fewest requests in flight, and every
+ * connection keeps up to a given number of requests in flight, i.e. sends them without
+ * waiting for the previous responses. The server answers the requests of a connection in
+ * order, so the responses are matched to the requests by their order. When all
+ * connections are at their limit, further requests wait in the client until a response
+ * frees a slot.
+ *
+ * The futures are completed on the I/O thread, so dependent actions that take long should
+ * use the async variants of the CompletableFuture methods. A request the server rejects
+ * because it is overloaded completes exceptionally with an {@link OverloadedException}.
+ */
+public class AsyncWoCoClient implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Connection[] connections;
+    private final int maxInFlight;
+    private final boolean binary;
+    private final Selector selector;
+    private final Thread ioThread;
+
+    // submitted by any thread, taken over by the I/O thread
+    private final ConcurrentLinkedQueue<Request> submitted;
+    // only used by the I/O thread
+    private final ArrayDeque<Request> waiting;
+    private final ByteBuffer readBuffer;
+    private volatile boolean closed;
+
+    /**
+     * Opens the connections and starts the I/O thread.
+     *
+     * @param serverAddress IP address or hostname of the WoCoServer.
+     * @param serverPort    Port number of the server.
+     * @param connections   Number of connections in the pool.
+     * @param maxInFlight   Maximum number of requests waiting for their response per connection.
+     * @param binary        Whether to ask the server for the binary format.
+     * @throws IOException if a connection cannot be opened or the server does not support
+     * the binary format.
+     */
+    public AsyncWoCoClient(String serverAddress, int serverPort, int connections, int maxInFlight, boolean binary) throws IOException {
+        this.maxInFlight = maxInFlight;
+        this.binary = binary;
+        this.selector = Selector.open();
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (binary) {
+                Protocol.negotiateBinary(channel);
+            }
+            channel.configureBlocking(false);
+            this.connections[i] = new Connection(channel);
+            channel.register(selector, SelectionKey.OP_READ, this.connections[i]);
+        }
+        this.submitted = new ConcurrentLinkedQueue<>();
+        this.waiting = new ArrayDeque<>();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        this.ioThread = new Thread(this::run, "woco-client-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Sends a document to the server.
+     *
+     * @param doc The document.
+     * @return Completes with the words of the document and their counts, or exceptionally
+     * if the connection fails or the client is closed.
+     */
+    public CompletableFuture<Map<String, Integer>> getWordCount(String doc) {
+        return submit("", doc);
+    }
+
+    /**
+     * Sends a document to the server and asks for its k most frequent words only.
+     *
+     * @param doc    The document.
+     * @param k      Number of words.
+     * @param approx Whether the server may count the words with a sketch, see {@link Protocol}.
+     * @return Completes with the words and their counts, in descending order of their counts.
+     */
+    public CompletableFuture<Map<String, Integer>> getTopWords(String doc, int k, boolean approx) {
+        String header = approx ? Protocol.header(Protocol.TOP + "=" + k, Protocol.APPROX) : Protocol.header(Protocol.TOP + "=" + k);
+        return submit(header, doc);
+    }
+
+    private CompletableFuture<Map<String, Integer>> submit(String header, String doc) {
+        CompletableFuture<Map<String, Integer>> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Client closed"));
+            return future;
+        }
+        byte[] bytes = (header + doc + WoCoServer.SEPARATOR).getBytes(StandardCharsets.ISO_8859_1);
+        Request request = new Request(ByteBuffer.wrap(bytes), future);
+        submitted.add(request);
+        // the I/O thread may have taken over the submitted requests for the last time since
+        // closed was checked, a request it has not taken fails here instead
+        if (closed && submitted.remove(request)) {
+            future.completeExceptionally(new IOException("Client closed"));
+            return future;
+        }
+        selector.wakeup();
+        return future;
+    }
+
+    /**
+     * Closes the connections. Requests without a response complete exceptionally.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The loop of the I/O thread.
+     */
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                Request request;
+                while ((request = submitted.poll()) != null) {
+                    waiting.add(request);
+                }
+                dispatch();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            write(conn);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(conn);
+                        }
+                    } catch (IOException e) {
+                        fail(conn, e);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                // responses freed slots for waiting requests
+                dispatch();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        IOException closedException = new IOException("Client closed");
+        for (Connection conn : connections) {
+            fail(conn, closedException);
+        }
+        Request request;
+        while ((request = submitted.poll()) != null) {
+            waiting.add(request);
+        }
+        for (Request waitingRequest : waiting) {
+            waitingRequest.future.completeExceptionally(closedException);
+        }
+        waiting.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Hands waiting requests to the least loaded connections with free slots.
+     */
+    private void dispatch() {
+        while (!waiting.isEmpty()) {
+            Connection target = null;
+            for (Connection conn : connections) {
+                if (conn.open && conn.inFlight.size() < maxInFlight
+                        && (target == null || conn.inFlight.size() < target.inFlight.size())) {
+                    target = conn;
+                }
+            }
+            if (target == null) {
+                if (!anyOpen()) {
+                    IOException e = new IOException("All connections failed");
+                    for (Request request : waiting) {
+                        request.future.completeExceptionally(e);
+                    }
+                    waiting.clear();
+                }
+                return;
+            }
+
+            Request request = waiting.poll();
+            target.inFlight.add(request);
+            target.outbound.add(request.bytes);
+            try {
+                write(target);
+            } catch (IOException e) {
+                fail(target, e);
+            }
+        }
+    }
+
+    private boolean anyOpen() {
+        for (Connection conn : connections) {
+            if (conn.open) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes as many of the queued requests of a connection as the channel takes.
+     */
+    private void write(Connection conn) throws IOException {
+        ByteBuffer next;
+        while ((next = conn.outbound.peek()) != null) {
+            conn.channel.write(next);
+            if (next.hasRemaining()) {
+                break;
+            }
+            conn.outbound.poll();
+        }
+
+        SelectionKey key = conn.channel.keyFor(selector);
+        int ops = conn.outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Reads the available data of a connection and completes the requests whose responses
+     * are complete.
+     */
+    private void read(Connection conn) throws IOException {
+        readBuffer.clear();
+        if (conn.channel.read(readBuffer) < 0) {
+            throw new IOException("Connection closed by the server");
+        }
+        ByteBuilder received = conn.received;
+        received.append(readBuffer.array(), 0, readBuffer.position());
+
+        int consumed = 0;
+        while (!conn.inFlight.isEmpty() && consumed < received.length()) {
+            // a response can start with a header, e.g. the one of an error response
+            int bodyStart = consumed;
+            HashMap<String, String> header = null;
+            if (received.array()[consumed] == Protocol.HEADER_START) {
+                int headerEnd = received.indexOf(Protocol.HEADER_END, consumed);
+                if (headerEnd < 0) {
+                    break;
+                }
+                header = new HashMap<>();
+                bodyStart = Protocol.parseHeader(received.array(), consumed, headerEnd + 1 - consumed, header);
+            }
+
+            Map<String, Integer> words;
+            if (binary) {
+                // a frame is a 4 byte big-endian length followed by the payload
+                if (received.length() - bodyStart < 4) {
+                    break;
+                }
+                int frameLen = ByteBuffer.wrap(received.array(), bodyStart, 4).getInt();
+                if (received.length() - bodyStart - 4 < frameLen) {
+                    break;
+                }
+                LinkedHashMap<String, Integer> map = new LinkedHashMap<>();
+                Protocol.decodeBinary(ByteBuffer.wrap(received.array(), bodyStart + 4, frameLen), (buf, off, len, count) ->
+                        map.put(new String(buf, off, len, StandardCharsets.ISO_8859_1), count));
+                words = map;
+                consumed = bodyStart + 4 + frameLen;
+            } else {
+                int end = received.indexOf((byte) '\n', bodyStart);
+                if (end < 0) {
+                    break;
+                }
+                words = parseText(received.array(), bodyStart, end);
+                consumed = end + 1;
+            }
+
+            CompletableFuture<Map<String, Integer>> future = conn.inFlight.poll().future;
+            if (header != null && header.containsKey(Protocol.ERROR)) {
+                future.completeExceptionally(new OverloadedException(header.get(Protocol.ERROR)));
+            } else {
+                future.complete(words);
+            }
+        }
+        received.compact(consumed);
+    }
+
+    /**
+     * Parses a text response, "word,count," pairs.
+     */
+    private static Map<String, Integer> parseText(byte[] buf, int from, int to) {
+        LinkedHashMap<String, Integer> words = new LinkedHashMap<>();
+        int pos = from;
+        while (pos < to) {
+            int wordStart = pos;
+            while (buf[pos] != ',') {
+                pos++;
+            }
+            String word = new String(buf, wordStart, pos - wordStart, StandardCharsets.ISO_8859_1);
+            pos++;
+            int count = 0;
+            while (buf[pos] != ',') {
+                count = count * 10 + (buf[pos++] - '0');
+            }
+            pos++;
+            words.put(word, count);
+        }
+        return words;
+    }
+
+    /**
+     * Closes a failed connection and fails its requests.
+     */
+    private void fail(Connection conn, IOException e) {
+        if (!conn.open) {
+            return;
+        }
+        conn.open = false;
+        try {
+            conn.channel.close();
+        } catch (IOException closeException) {
+            // the connection is gone either way
+        }
+        for (Request request : conn.inFlight) {
+            request.future.completeExceptionally(e);
+        }
+        conn.inFlight.clear();
+        conn.outbound.clear();
+    }
+
+    /**
+     * The server rejected a request because it is overloaded, the request can be sent again
+     * later.
+     */
+    public static class OverloadedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        OverloadedException(String error) {
+            super("Request rejected by the server: " + error);
+        }
+    }
+
+    private static class Request {
+        private final ByteBuffer bytes;
+        private final CompletableFuture<Map<String, Integer>> future;
+
+        Request(ByteBuffer bytes, CompletableFuture<Map<String, Integer>> future) {
+            this.bytes = bytes;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A pooled connection. Only used by the I/O thread.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        // requests sent or being sent, in the order of their responses
+        private final ArrayDeque<Request> inFlight = new ArrayDeque<>();
+        // requests not completely written yet
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        // received data that does not form a complete response yet
+        private final ByteBuilder received = new ByteBuilder(READ_BUFFER_SIZE);
+        private boolean open = true;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.master.eit;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable array of bytes, the byte counterpart of a StringBuilder. Gives direct
+ * access to its backing array so the content can be processed without copying it. The
+ * array grows in size classes, powers of two, so arrays of equal class can be pooled.
+ */
+public class ByteBuilder {
+
+    private byte[] data;
+    private int length;
+
+    public ByteBuilder() {
+        this(1024);
+    }
+
+    public ByteBuilder(int capacity) {
+        data = new byte[capacity];
+        length = 0;
+    }
+
+    /**
+     * @return The size class of an array holding at least capacity bytes, i.e. the next
+     * power of two, but at least 1 KiB.
+     */
+    public static int sizeClass(int capacity) {
+        return (capacity <= 1024) ? 1024 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    /**
+     * Appends a slice of a byte array.
+     *
+     * @param src Buffer to copy from.
+     * @param off Offset of the first byte to copy.
+     * @param len Number of bytes to copy.
+     */
+    public void append(byte[] src, int off, int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(src, off, data, length, len);
+        length += len;
+    }
+
+    /**
+     * Appends a single byte.
+     *
+     * @param b The byte to append.
+     */
+    public void append(byte b) {
+        ensureCapacity(length + 1);
+        data[length++] = b;
+    }
+
+    /**
+     * Appends bytes that are filled in through the returned buffer, for code that writes
+     * to a ByteBuffer. The buffer is only valid until the next append.
+     *
+     * @param len Number of bytes to append.
+     * @return A buffer over the appended bytes, positioned at the first of them.
+     */
+    public ByteBuffer appendBuffer(int len) {
+        ensureCapacity(length + len);
+        ByteBuffer buf = ByteBuffer.wrap(data, length, len);
+        length += len;
+        return buf;
+    }
+
+    /**
+     * Appends the decimal ASCII representation of an int, like StringBuilder.append(int).
+     *
+     * @param value The value to append.
+     */
+    public void appendInt(int value) {
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                byte[] min = Integer.toString(value).getBytes();
+                append(min, 0, min.length);
+                return;
+            }
+            append((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(length + digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            data[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Returns the index of the first occurrence of a byte at or after a given position.
+     *
+     * @param b    The byte to look for.
+     * @param from Position to start searching from.
+     * @return Index of the byte or -1 if it does not occur.
+     */
+    public int indexOf(byte b, int from) {
+        for (int i = from; i < length; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The backing array, only the first length() bytes are valid.
+     */
+    public byte[] array() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    /**
+     * Removes the first bytes and moves the remaining ones to the start of the array.
+     *
+     * @param count Number of bytes to remove.
+     */
+    public void compact(int count) {
+        System.arraycopy(data, count, data, 0, length - count);
+        length -= count;
+    }
+
+    /**
+     * Continues with another backing array and no content. The previous array is left
+     * untouched, e.g. for another thread still reading it.
+     *
+     * @param array The new backing array.
+     */
+    public void reset(byte[] array) {
+        data = array;
+        length = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, sizeClass(capacity));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.master.eit;
+
+/**
+ * Classifies the bytes of a document a block at a time for the {@link WordTokenizer}, which
+ * then walks over the letters, spaces and tag characters of the block with bit operations
+ * instead of branching on every byte.
+ *
+ * The only implementation, {@link VectorByteClassifier}, uses the incubating Vector API and
+ * is built from the src-vector directory on Java 16 or later. It is only used if the JVM
+ * was started with "--add-modules jdk.incubator.vector", otherwise the tokenizer keeps its
+ * scalar loops, which are also the reference the vectorized path has to match.
+ */
+public interface ByteClassifier {
+
+    // bytes per block, one bit per byte in the masks
+    int BLOCK_SIZE = 64;
+
+    // indexes into the masks filled by classify
+    int LETTERS = 0;
+    int SPACES = 1;
+    int TAGS = 2;
+
+    /**
+     * Classifies a block of {@link #BLOCK_SIZE} bytes. Bit i of a mask is set if byte i of
+     * the block belongs to the class: LETTERS for "a-z" after lower casing, i.e. for "A-Z"
+     * as well, SPACES for ' ' and TAGS for '<' and '>'.
+     *
+     * @param buf   Buffer holding the block.
+     * @param off   Offset of the block in buf.
+     * @param masks Receives the three masks.
+     */
+    void classify(byte[] buf, int off, long[] masks);
+
+    /**
+     * @return A short description of the implementation for the startup message.
+     */
+    String describe();
+
+    /**
+     * Loads the vectorized classifier.
+     *
+     * @return The classifier, or null if the Vector API is not available in this JVM.
+     */
+    static ByteClassifier vectorized() {
+        try {
+            // the class is only linked against the incubator module when it is loaded, and
+            // its constructor fails if the CPU has no vector registers of a useful width
+            return (ByteClassifier) Class.forName("org.master.eit.VectorByteClassifier")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
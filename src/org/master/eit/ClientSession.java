@@ -0,0 +1,403 @@
+package org.master.eit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of a client connection: the options the client negotiated with a hello
+ * request, the received data, the responses waiting to be written and buffers that are
+ * reused across the requests of the client.
+ *
+ * The received data is collected in an input array that is reused for the following
+ * requests. While the documents in it are counted by workers, the connection continues
+ * with a spare array of the same size class, and the workers hand the array back
+ * afterwards. A connection thus alternates between two arrays and receiving documents
+ * does not allocate, however large they are.
+ *
+ * A connection can negotiate compression, its received data is then decompressed before
+ * it is processed and its responses are compressed before they are queued, see
+ * {@link DeflateCodec}.
+ *
+ * A connection in the {@link Protocol#FORMAT_IDS} format keeps the IDs of the words it
+ * has been sent, so every word is only spelled out in its first response. The requests of
+ * a client are processed one at a time and in order, so they are only used by one thread
+ * at a time.
+ *
+ * Responses are only queued by {@link #send(ByteBuffer)}, the reactor serving the
+ * connection writes them when the channel can take them, so a slow reader never blocks the
+ * thread that counted its document. Connections without a reactor are blocking and are
+ * written right away by the thread serving them.
+ */
+public class ClientSession {
+
+    // maximum number of queued responses written with one gathering write
+    private static final int GATHER_SIZE = 16;
+    // maximum number of response buffers kept for reuse
+    private static final int POOLED_BUFFERS = 4;
+    // initial size of the input array and maximum number of spare input arrays
+    private static final int INPUT_SIZE = 64 * 1024;
+    private static final int SPARE_INPUTS = 4;
+
+    private final SocketChannel channel;
+    private final Reactor reactor;
+    private final int clientId;
+    private volatile boolean binary;
+    private volatile boolean wordIds;
+    private BitSet knownWords;
+    private int[] wordIdBuffer;
+    // decompresses the received data, null if the connection is not compressed
+    private volatile DeflateCodec codec;
+    private volatile boolean compressResponses;
+
+    private final ByteBuilder input;
+    private final ConcurrentLinkedQueue<byte[]> spareInputs;
+    private DocumentStream stream;
+    private SpaceSavingSketch sketch;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound;
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers;
+    // true while the session waits for its reactor to write the queued responses
+    final AtomicBoolean writeScheduled;
+    // only used by the reactor thread
+    private final ByteBuffer[] gather;
+
+    // true while the reactor does not read from the connection, see AdmissionControl
+    private final AtomicBoolean readPaused;
+    // tasks scheduled for the client on the workers and not finished yet
+    private final AtomicInteger scheduledTasks;
+
+    /**
+     * @param channel The connection of the client.
+     * @param reactor The reactor serving the connection, or null for a blocking channel.
+     */
+    public ClientSession(SocketChannel channel, Reactor reactor) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.clientId = channel.hashCode();
+        this.input = new ByteBuilder(INPUT_SIZE);
+        this.spareInputs = new ConcurrentLinkedQueue<>();
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.freeBuffers = new ConcurrentLinkedQueue<>();
+        this.writeScheduled = new AtomicBoolean();
+        this.gather = new ByteBuffer[GATHER_SIZE];
+        this.readPaused = new AtomicBoolean();
+        this.scheduledTasks = new AtomicInteger();
+    }
+
+    public int getClientId() {
+        return clientId;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * @return Whether the responses carry word IDs instead of words, in the binary frames of
+     * the {@link Protocol#FORMAT_IDS} format.
+     */
+    public boolean usesWordIds() {
+        return wordIds;
+    }
+
+    /**
+     * Sets whether the responses from now on carry word IDs, and forgets the IDs sent before.
+     *
+     * @param wordIds
+     */
+    public void setWordIds(boolean wordIds) {
+        this.wordIds = wordIds;
+        this.knownWords = wordIds ? new BitSet() : null;
+    }
+
+    /**
+     * @return The IDs of the words the client has been sent, see {@link #usesWordIds()}.
+     */
+    public BitSet getKnownWords() {
+        return knownWords;
+    }
+
+    /**
+     * Returns an array to look up the IDs of the words of a response in, reused for the
+     * following responses.
+     *
+     * @param words Number of words of the response.
+     * @return An array of at least words elements.
+     */
+    public int[] wordIdBuffer(int words) {
+        if (wordIdBuffer == null || wordIdBuffer.length < words) {
+            wordIdBuffer = new int[Math.max(words, 1024)];
+        }
+        return wordIdBuffer;
+    }
+
+    /**
+     * @return The codec decompressing the received data, null if it is not compressed.
+     */
+    public DeflateCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets how the data received from now on is decompressed.
+     *
+     * @param codec The codec, null for uncompressed data.
+     */
+    public void setCodec(DeflateCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Sets whether the responses sent from now on are compressed with the codec.
+     *
+     * @param compressResponses
+     */
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+
+    /**
+     * @return The data received from the client that has not been handed over yet. Only
+     * used by the thread receiving the data.
+     */
+    public ByteBuilder getInput() {
+        return input;
+    }
+
+    /**
+     * Hands the input array over to the threads processing the documents in it and
+     * continues with a spare array, which takes over the unprocessed rest of the input.
+     *
+     * @param processed Number of bytes at the start of the input that have been handed over.
+     * @return The previous input array, to be passed to {@link #recycleInput(byte[])} once
+     * it is no longer read.
+     */
+    public byte[] handOverInput(int processed) {
+        byte[] previous = input.array();
+        int length = input.length();
+
+        input.reset(spareInput(Math.max(previous.length, length - processed)));
+        input.append(previous, processed, length - processed);
+        return previous;
+    }
+
+    /**
+     * Returns a spare input array, to be passed to {@link #recycleInput(byte[])} once it is
+     * no longer read.
+     *
+     * @param capacity Minimum number of bytes needed.
+     * @return An array of at least capacity bytes.
+     */
+    public byte[] spareInput(int capacity) {
+        byte[] spare;
+        while ((spare = spareInputs.poll()) != null) {
+            if (spare.length >= capacity) {
+                return spare;
+            }
+            // too small, it is replaced by a larger one
+        }
+        return new byte[ByteBuilder.sizeClass(Math.max(capacity, INPUT_SIZE))];
+    }
+
+    /**
+     * Takes back an input array that is no longer read. Can be called from any thread.
+     *
+     * @param array An array returned by {@link #handOverInput(int)}.
+     */
+    public void recycleInput(byte[] array) {
+        if (spareInputs.size() < SPARE_INPUTS) {
+            spareInputs.add(array);
+        }
+    }
+
+    /**
+     * @return The document currently being streamed, null if the client has not sent one yet.
+     */
+    public DocumentStream getStream() {
+        return stream;
+    }
+
+    public void setStream(DocumentStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Returns the sketch to count a document of the client in for an approximate top-k
+     * response, reused for the following documents. Only used by the thread counting the
+     * documents of the client.
+     *
+     * @param capacity Number of counters of the sketch.
+     * @return The sketch, still holding the counts of the last document counted in it.
+     */
+    public SpaceSavingSketch getSketch(int capacity) {
+        if (sketch == null || sketch.capacity() != capacity) {
+            sketch = new SpaceSavingSketch(capacity);
+        }
+        return sketch;
+    }
+
+    /**
+     * Stops reading from the connection until {@link #resumeReading()} is called. Only
+     * called by the reactor serving the connection.
+     *
+     * @return Whether the connection was reading before, false for a blocking channel.
+     */
+    public boolean pauseReading() {
+        if (reactor == null || !readPaused.compareAndSet(false, true)) {
+            return false;
+        }
+        reactor.stopReading(this);
+        return true;
+    }
+
+    /**
+     * Continues reading from the connection. Can be called from any thread.
+     *
+     * @return Whether the connection was paused before.
+     */
+    public boolean resumeReading() {
+        if (!readPaused.compareAndSet(true, false)) {
+            return false;
+        }
+        reactor.requestRead(this);
+        return true;
+    }
+
+    boolean isReadPaused() {
+        return readPaused.get();
+    }
+
+    /**
+     * Counts a task scheduled for the client, see {@link #taskDone()}.
+     */
+    public void taskScheduled() {
+        scheduledTasks.incrementAndGet();
+    }
+
+    /**
+     * Counts a task of the client that has finished, including sending its response.
+     */
+    public void taskDone() {
+        scheduledTasks.decrementAndGet();
+    }
+
+    /**
+     * @return Whether tasks of the client are scheduled or running, a response sent now
+     * would overtake theirs.
+     */
+    public boolean hasScheduledTasks() {
+        return scheduledTasks.get() > 0;
+    }
+
+    /**
+     * Returns a cleared direct buffer to serialize a response into. The buffer is returned
+     * to the session once the response has been written and is reused for later responses.
+     *
+     * @param capacity Minimum number of bytes needed.
+     * @return The response buffer.
+     */
+    public ByteBuffer responseBuffer(int capacity) {
+        ByteBuffer buf;
+        while ((buf = freeBuffers.poll()) != null) {
+            if (buf.capacity() >= capacity) {
+                buf.clear();
+                return buf;
+            }
+            // too small, it is replaced by a larger one
+        }
+        return ByteBuffer.allocateDirect(ByteBuilder.sizeClass(capacity));
+    }
+
+    /**
+     * Sends a response to the client, compressed if the connection negotiated compression.
+     * Can be called from any thread, the responses are written in the order of the calls.
+     *
+     * @param response The response, positioned at its first byte.
+     * @return Number of bytes sent, after compression.
+     * @throws IOException if writing to a blocking channel fails.
+     */
+    public int send(ByteBuffer response) throws IOException {
+        if (compressResponses) {
+            ByteBuffer compressed = codec.deflate(response);
+            release(response);
+            response = compressed;
+        }
+        int length = response.remaining();
+
+        if (reactor == null) {
+            // a blocking channel writes the whole buffer
+            while (response.hasRemaining()) {
+                channel.write(response);
+            }
+            release(response);
+        } else {
+            outbound.add(response);
+            reactor.requestWrite(this);
+        }
+        return length;
+    }
+
+    /**
+     * Writes as many of the queued responses as the channel takes without blocking. Only
+     * called by the reactor serving the connection.
+     *
+     * @return Whether all queued responses have been written.
+     * @throws IOException if writing fails.
+     */
+    boolean flush() throws IOException {
+        while (true) {
+            int count = 0;
+            for (ByteBuffer response : outbound) {
+                if (count == GATHER_SIZE) {
+                    break;
+                }
+                gather[count++] = response;
+            }
+            if (count == 0) {
+                return true;
+            }
+
+            channel.write(gather, 0, count);
+
+            boolean written = true;
+            for (int i = 0; i < count; i++) {
+                if (written && !gather[i].hasRemaining()) {
+                    release(outbound.poll());
+                } else {
+                    written = false;
+                }
+                gather[i] = null;
+            }
+            if (!written) {
+                // the send buffer of the socket is full
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Drops the queued responses of a closed connection.
+     */
+    void discardOutbound() {
+        outbound.clear();
+    }
+
+    private void release(ByteBuffer response) {
+        if (response.isDirect() && freeBuffers.size() < POOLED_BUFFERS) {
+            freeBuffers.add(response);
+        }
+    }
+}
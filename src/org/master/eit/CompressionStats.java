@@ -0,0 +1,103 @@
+package org.master.eit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes of compressed connections before and after compression and the time
+ * spent compressing them, separately for the requests and the responses.
+ */
+public class CompressionStats {
+
+    private final Direction requests = new Direction();
+    private final Direction responses = new Direction();
+
+    /**
+     * @return The counters of the received requests, which are decompressed.
+     */
+    public Direction requests() {
+        return requests;
+    }
+
+    /**
+     * @return The counters of the sent responses, which are compressed.
+     */
+    public Direction responses() {
+        return responses;
+    }
+
+    /**
+     * Starts a new measurement interval for the report.
+     */
+    public void resetCounters() {
+        requests.reset();
+        responses.reset();
+    }
+
+    /**
+     * @return Whether any data has been compressed or decompressed since the last reset.
+     */
+    public boolean isUsed() {
+        return requests.getCompressedBytes() > requests.compressedAtReset
+                || responses.getCompressedBytes() > responses.compressedAtReset;
+    }
+
+    /**
+     * @return The figures since the last reset as "Compression [bytes,bytes,ratio,ms]:
+     * requests,compressed,uncompressed,ratio,time;responses,...".
+     */
+    public String report() {
+        return "Compression [bytes,bytes,ratio,ms]: requests," + requests.report() + ";responses," + responses.report();
+    }
+
+    /**
+     * The counters of one direction. The totals count since the start of the server.
+     */
+    public static class Direction {
+
+        private final LongAdder compressedBytes = new LongAdder();
+        private final LongAdder uncompressedBytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private volatile long compressedAtReset;
+        private volatile long uncompressedAtReset;
+        private volatile long nanosAtReset;
+
+        /**
+         * @param compressed   Number of compressed bytes.
+         * @param uncompressed Number of uncompressed bytes.
+         * @param time         Time spent compressing or decompressing them in nanoseconds.
+         */
+        public void record(long compressed, long uncompressed, long time) {
+            compressedBytes.add(compressed);
+            uncompressedBytes.add(uncompressed);
+            nanos.add(time);
+        }
+
+        public long getCompressedBytes() {
+            return compressedBytes.sum();
+        }
+
+        public long getUncompressedBytes() {
+            return uncompressedBytes.sum();
+        }
+
+        /**
+         * @return Time spent compressing or decompressing in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos.sum();
+        }
+
+        private void reset() {
+            compressedAtReset = compressedBytes.sum();
+            uncompressedAtReset = uncompressedBytes.sum();
+            nanosAtReset = nanos.sum();
+        }
+
+        private String report() {
+            long compressed = compressedBytes.sum() - compressedAtReset;
+            long uncompressed = uncompressedBytes.sum() - uncompressedAtReset;
+            float ratio = compressed > 0 ? (float) uncompressed / compressed : 0.0f;
+            return compressed + "," + uncompressed + "," + ratio + "," + (nanos.sum() - nanosAtReset) / 1000000.0f;
+        }
+    }
+}
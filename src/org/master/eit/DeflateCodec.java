@@ -0,0 +1,110 @@
+package org.master.eit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of a connection, negotiated with a hello request, see {@link Protocol}.
+ * Each direction is one zlib stream over all requests or responses of the connection, and
+ * every message ends with a sync flush, so it can be decompressed as soon as it has been
+ * received while later messages still profit from the dictionary built by the earlier ones.
+ *
+ * The Inflater and the Deflater are reused for all messages of the connection. Their
+ * native memory is released by the garbage collector once the connection is gone, a worker
+ * may still be compressing a response when the connection is closed.
+ */
+public class DeflateCodec {
+
+    // compression costs CPU of the server, which all clients share
+    public static final int LEVEL = Deflater.BEST_SPEED;
+
+    // decompressed data is handed over in pieces of this size
+    private static final int PIECE_SIZE = 64 * 1024;
+
+    private final CompressionStats stats;
+
+    // only used by the thread receiving the data of the connection
+    private final Inflater inflater;
+    private final byte[] inflated;
+
+    // used by the threads sending responses, one at a time
+    private final Deflater deflater;
+
+    /**
+     * @param stats Counters to record the compressed and uncompressed bytes in.
+     */
+    public DeflateCodec(CompressionStats stats) {
+        this.stats = stats;
+        this.inflater = new Inflater();
+        this.inflated = new byte[PIECE_SIZE];
+        this.deflater = new Deflater(LEVEL);
+    }
+
+    /**
+     * Passes received compressed data to the decompression. The data has to be consumed
+     * with {@link #inflate()} before more data is passed, the array is not copied.
+     *
+     * @param buf Buffer holding the received data.
+     * @param off Offset of the data in buf.
+     * @param len Number of received bytes.
+     */
+    public void setInput(byte[] buf, int off, int len) {
+        inflater.setInput(buf, off, len);
+        stats.requests().record(len, 0, 0);
+    }
+
+    /**
+     * Decompresses the next piece of the received data into {@link #getInflated()}.
+     *
+     * @return Number of decompressed bytes, 0 once the received data is consumed.
+     * @throws IOException if the received data is not a valid zlib stream.
+     */
+    public int inflate() throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            int len = inflater.inflate(inflated);
+            stats.requests().record(0, len, System.nanoTime() - startTime);
+            return len;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        }
+    }
+
+    /**
+     * @return The piece decompressed by the last call of {@link #inflate()}, valid until the
+     * next call.
+     */
+    public byte[] getInflated() {
+        return inflated;
+    }
+
+    /**
+     * Compresses a response and flushes it, so the client can decompress it completely.
+     *
+     * @param response The response, positioned at its first byte. It is consumed.
+     * @return The compressed response.
+     */
+    public synchronized ByteBuffer deflate(ByteBuffer response) {
+        long startTime = System.nanoTime();
+        int uncompressed = response.remaining();
+        deflater.setInput(response);
+
+        byte[] out = new byte[Math.max(64, uncompressed / 2)];
+        int len = 0;
+        while (true) {
+            len += deflater.deflate(out, len, out.length - len, Deflater.SYNC_FLUSH);
+            // a full output array can mean that more output is pending
+            if (len < out.length) {
+                break;
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+
+        stats.responses().record(len, uncompressed, System.nanoTime() - startTime);
+        return ByteBuffer.wrap(out, 0, len);
+    }
+}
@@ -0,0 +1,52 @@
+package org.master.eit;
+
+/**
+ * Runs the processing of documents on the worker threads of the server. The documents of
+ * a client are processed one after the other, in the order they were received, so the
+ * client receives its results in order.
+ */
+public interface DocumentScheduler {
+
+    /**
+     * Schedules the processing of a document.
+     *
+     * @param clientId The client that sent the document.
+     * @param task     Processes the document and sends the result to the client.
+     */
+    void execute(int clientId, Runnable task);
+
+    /**
+     * Releases the resources held for a client after it disconnected.
+     *
+     * @param clientId
+     */
+    void clientDisconnected(int clientId);
+
+    /**
+     * @return The busy time of the worker threads.
+     */
+    WorkerUtilization getUtilization();
+
+    /**
+     * @return Number of worker threads.
+     */
+    int getWorkerCount();
+
+    /**
+     * @param worker Index of the worker.
+     * @return Number of entries waiting in the queue of the worker.
+     */
+    int getQueueDepth(int worker);
+
+    /**
+     * @return Number of scheduled tasks that have not been started yet, over all workers.
+     */
+    int getPendingTasks();
+
+    /**
+     * @param clientId The client whose next document would be scheduled.
+     * @param limit    Maximum number of tasks waiting per worker.
+     * @return Whether the queue the documents of the client go to holds limit or more tasks.
+     */
+    boolean isFull(int clientId, int limit);
+}
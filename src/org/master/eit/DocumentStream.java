@@ -0,0 +1,131 @@
+package org.master.eit;
+
+import java.util.HashMap;
+
+/**
+ * A document that is counted while it is still being received. Every chunk is passed to
+ * the tokenizer as soon as it arrives; the tag depth and a word cut off at the end of a
+ * chunk are kept by the tokenizer until the next one. When the separator arrives, the
+ * counts are complete and only the serialization of the result is left.
+ *
+ * The receiving thread only tracks whether a document is open, the chunks are counted by
+ * the thread the client is scheduled on, one after the other. A document can also be
+ * counted in a sketch instead of the table, for an approximate top-k response.
+ */
+public class DocumentStream {
+
+    private final WordCountTable wc;
+    private final WordTokenizer tokenizer;
+    // counts into the sketch of the last approximate document, created for the first one
+    private WordTokenizer sketchTokenizer;
+    private SpaceSavingSketch sketch;
+    private WordTokenizer active;
+
+    // used by the receiving thread
+    private boolean open;
+    private HashMap<String, String> header;
+
+    // used by the counting thread
+    private long countNanos;
+
+    /**
+     * @param wc The table the words of every document are counted in.
+     */
+    public DocumentStream(WordCountTable wc) {
+        this.wc = wc;
+        this.tokenizer = new WordTokenizer(wc);
+    }
+
+    /**
+     * @return The table the words of every document are counted in.
+     */
+    public WordCountTable getCounts() {
+        return wc;
+    }
+
+    /**
+     * @return Whether a document has been started and its separator not yet received.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Marks the start of a request on the receiving side.
+     *
+     * @param header The header fields of the request, null if it has none.
+     */
+    public void open(HashMap<String, String> header) {
+        this.open = true;
+        this.header = header;
+    }
+
+    /**
+     * Marks the end of the request on the receiving side.
+     *
+     * @return The header fields of the request, null if it had none.
+     */
+    public HashMap<String, String> close() {
+        open = false;
+        return header;
+    }
+
+    /**
+     * @return Whether the open request is a command, e.g. a hello, which carries no document.
+     */
+    public boolean isCommand() {
+        return header != null && Protocol.isCommand(header);
+    }
+
+    /**
+     * @return Whether the open request is a batch of documents, which is not counted while
+     * it is received but collected and counted once it is complete.
+     */
+    public boolean isBatch() {
+        return header != null && header.containsKey(Protocol.BATCH);
+    }
+
+    /**
+     * Starts counting a new document.
+     *
+     * @param cleanHtml Whether HTML tags are skipped.
+     * @param sketch    Sketch to count the document in, null to count it in the table.
+     */
+    public void start(boolean cleanHtml, SpaceSavingSketch sketch) {
+        if (sketch == null) {
+            active = tokenizer;
+        } else {
+            if (sketch != this.sketch) {
+                this.sketch = sketch;
+                sketchTokenizer = new WordTokenizer(sketch);
+            }
+            active = sketchTokenizer;
+        }
+        if (sketch != null) {
+            sketch.reset();
+        }
+        active.reset(cleanHtml);
+        countNanos = 0;
+    }
+
+    /**
+     * Counts the next chunk of the document.
+     */
+    public void feed(byte[] buf, int off, int len) {
+        long startTime = System.nanoTime();
+        active.feed(buf, off, len);
+        countNanos += System.nanoTime() - startTime;
+    }
+
+    /**
+     * Completes the counts of the document.
+     *
+     * @return Time spent counting the document over all chunks, in nanoseconds.
+     */
+    public long finish() {
+        long startTime = System.nanoTime();
+        active.finish();
+        countNanos += System.nanoTime() - startTime;
+        return countNanos;
+    }
+}
@@ -0,0 +1,125 @@
+package org.master.eit;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Word counts over all documents the server has answered, kept across experiments. The
+ * counts are split into stripes, each a WordCountTable with its own lock. A counting
+ * thread always adds to the stripe of its thread, so the threads hardly ever wait for each
+ * other, and they do so only after the response to the document has been sent. A query
+ * merges the stripes lazily, locking one at a time.
+ */
+public class GlobalWordCounts {
+
+    private final WordCountTable[] stripes;
+
+    /**
+     * @param concurrency Expected number of threads adding counts at the same time.
+     */
+    public GlobalWordCounts(int concurrency) {
+        stripes = new WordCountTable[Integer.highestOneBit(Math.max(1, concurrency) * 2 - 1)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new WordCountTable(4096);
+        }
+    }
+
+    /**
+     * Adds the counts of a document.
+     *
+     * @param wc The word counts of the document.
+     */
+    public void add(WordCountTable wc) {
+        WordCountTable stripe = stripe();
+        synchronized (stripe) {
+            stripe.addAll(wc);
+        }
+    }
+
+    /**
+     * Adds the counts of a document that were not counted again, but answered with a
+     * serialized response, e.g. from the result cache.
+     *
+     * @param response The response, without a request header.
+     * @param binary   Whether the response is in the binary format, otherwise in text.
+     */
+    public void addResponse(byte[] response, boolean binary) {
+        WordCountTable stripe = stripe();
+        synchronized (stripe) {
+            if (binary) {
+                ByteBuffer frame = ByteBuffer.wrap(response);
+                frame.position(4);
+                Protocol.decodeBinary(frame, (buf, off, len, count) -> stripe.add(buf, off, len, hash(buf, off, len), count));
+            } else {
+                // "word,count," pairs terminated by a newline
+                int pos = 0;
+                while (pos < response.length && response[pos] != '\n') {
+                    int wordStart = pos;
+                    while (response[pos] != ',') {
+                        pos++;
+                    }
+                    int wordEnd = pos++;
+                    int count = 0;
+                    while (response[pos] != ',') {
+                        count = count * 10 + (response[pos++] - '0');
+                    }
+                    pos++;
+                    stripe.add(response, wordStart, wordEnd - wordStart, hash(response, wordStart, wordEnd - wordStart), count);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param n Number of words, any larger number than the words seen so far returns all
+     * of them.
+     * @return The n words with the highest counts, in descending order of their counts.
+     */
+    public WordCountTable top(int n) {
+        WordCountTable merged = new WordCountTable(4096);
+        for (WordCountTable stripe : stripes) {
+            synchronized (stripe) {
+                merged.addAll(stripe);
+            }
+        }
+        // n comes from the client, the table is sized by the words there are
+        WordCountTable top = new WordCountTable(Math.min(n, merged.size()));
+        top.addTop(merged, n);
+        return top;
+    }
+
+    /**
+     * @param words Words to look up.
+     * @return The counts of the given words, 0 for words that have not been seen.
+     */
+    public WordCountTable counts(String[] words) {
+        WordCountTable result = new WordCountTable(words.length);
+        for (String word : words) {
+            byte[] bytes = word.getBytes(StandardCharsets.ISO_8859_1);
+            int hash = hash(bytes, 0, bytes.length);
+            int count = 0;
+            for (WordCountTable stripe : stripes) {
+                synchronized (stripe) {
+                    count += stripe.get(bytes, 0, bytes.length, hash);
+                }
+            }
+            result.add(bytes, 0, bytes.length, hash, count);
+        }
+        return result;
+    }
+
+    private WordCountTable stripe() {
+        return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+    }
+
+    /**
+     * @return The hash of a word as computed by the tokenizer, i.e. String.hashCode().
+     */
+    private static int hash(byte[] buf, int off, int len) {
+        int hash = 0;
+        for (int i = off; i < off + len; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,169 @@
+package org.master.eit;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations in a fixed amount of memory, in the style of HdrHistogram.
+ * Durations are recorded in nanoseconds into logarithmic buckets: below 256 ns every value
+ * has its own bucket, above that every power of two is split into 128 buckets, so a bucket
+ * is never wider than 1/128 of its values and percentiles are accurate to 0.4%. Durations
+ * above 2^40 ns, about 18 minutes, are counted in the last bucket.
+ *
+ * The mean, the standard deviation, the minimum and the maximum are kept exactly, next to
+ * the buckets. Recording is O(1) and never allocates, histograms are merged by adding
+ * their buckets. A histogram is not thread-safe, see {@link LatencyRecorder}.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = LINEAR_LIMIT + (MAX_BITS - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final long[] buckets;
+    private long count;
+    // running mean and sum of squared differences from the mean, in nanoseconds
+    private double mean;
+    private double squares;
+    private long min;
+    private long max;
+
+    public LatencyHistogram() {
+        buckets = new long[BUCKETS];
+        reset();
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds, negative durations are counted as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets[bucket(value)]++;
+        count++;
+        // Welford's update, numerically stable for any number of values
+        double delta = value - mean;
+        mean += delta / count;
+        squares += delta * (value - mean);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds all durations of another histogram to this one.
+     *
+     * @param other The histogram to add.
+     */
+    public void add(LatencyHistogram other) {
+        if (other.count == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        // combines the means and squared differences of both parts
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        squares += other.squares + delta * delta * count * other.count / total;
+        mean += delta * other.count / total;
+        count = total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Removes all recorded durations.
+     */
+    public void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        mean = 0;
+        squares = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * @return Number of recorded durations.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The mean of the durations in milliseconds, 0 if there are none.
+     */
+    public float getMeanMillis() {
+        return (float) (mean / 1000000.0);
+    }
+
+    /**
+     * @return The standard deviation of the durations in milliseconds, 0 if there are none.
+     */
+    public float getStdMillis() {
+        if (count == 0) {
+            return 0.0f;
+        }
+        return (float) (Math.sqrt(squares / count) / 1000000.0);
+    }
+
+    /**
+     * Returns a percentile of the durations: the duration below or at which the given share
+     * of the durations lies, i.e. the duration at rank count*percentile/100 in ascending
+     * order, but at least the first one.
+     *
+     * @param percentile Percentile between 0 and 100.
+     * @return The duration in milliseconds, 0 if there are none.
+     */
+    public float getPercentileMillis(double percentile) {
+        if (count == 0) {
+            return 0.0f;
+        }
+        long rank = Math.max(1, (long) (count * percentile / 100));
+        if (rank >= count) {
+            return (float) (max / 1000000.0);
+        }
+        long seen = 0;
+        int i = 0;
+        while (i < BUCKETS - 1) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                break;
+            }
+            i++;
+        }
+        // the middle of the bucket, within the exact range of the recorded durations
+        long value = Math.min(max, Math.max(min, (lowestValue(i) + lowestValue(i + 1) - 1) / 2));
+        return (float) (value / 1000000.0);
+    }
+
+    /**
+     * @return Index of the bucket counting the given duration.
+     */
+    private static int bucket(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift > MAX_BITS - SUB_BUCKET_BITS - 1) {
+            return BUCKETS - 1;
+        }
+        // the value shifted right has its highest bit at SUB_BUCKET_BITS, i.e. the sub bucket is below it
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return The smallest duration counted in the given bucket, for BUCKETS the first
+     * duration beyond the last regular bucket.
+     */
+    private static long lowestValue(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return subBucket << shift;
+    }
+}
@@ -0,0 +1,58 @@
+package org.master.eit;
+
+/**
+ * Records durations from any number of threads into fixed memory. Like GlobalWordCounts,
+ * the durations are split into stripes, each a LatencyHistogram with its own lock, and a
+ * thread always records into the stripe of its thread, so recording threads hardly ever
+ * wait for each other. The stripes are merged when the durations are reported.
+ */
+public class LatencyRecorder {
+
+    private final LatencyHistogram[] stripes;
+
+    /**
+     * @param concurrency Expected number of threads recording at the same time.
+     */
+    public LatencyRecorder(int concurrency) {
+        stripes = new LatencyHistogram[Integer.highestOneBit(Math.max(1, concurrency) * 2 - 1)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        LatencyHistogram stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        synchronized (stripe) {
+            stripe.record(nanos);
+        }
+    }
+
+    /**
+     * @return A histogram of all durations recorded so far.
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LatencyHistogram stripe : stripes) {
+            synchronized (stripe) {
+                merged.add(stripe);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Removes all recorded durations.
+     */
+    public void reset() {
+        for (LatencyHistogram stripe : stripes) {
+            synchronized (stripe) {
+                stripe.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package org.master.eit;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Open-loop load generator: drives many connections from one thread with non-blocking
+ * I/O and sends documents at a fixed target rate, whether or not the server keeps up.
+ * The documents are spread round-robin over the connections, and a connection sends its
+ * next document without waiting for the response to the previous one.
+ *
+ * A closed-loop client only sends when the previous response has arrived, so while the
+ * server stalls it sends nothing and the stall shows up in a single response time. Here
+ * every request has an intended send time, start + i / rate, and its response time is
+ * measured from that time instead of from the time it was actually sent. This corrects
+ * for coordinated omission: requests that would have been sent during a stall are counted
+ * with the time they would have waited. The uncorrected service time, measured from the
+ * actual send, is reported as well.
+ */
+public class LoadGenerator {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Connection[] connections;
+    private final Selector selector;
+    private final double rate;
+    private final boolean binary;
+
+    private final LatencyHistogram responseTimes;
+    private final LatencyHistogram serviceTimes;
+    private long startTime;
+    private long endTime;
+    private int completed;
+
+    /**
+     * Opens the connections.
+     *
+     * @param serverAddress IP address or hostname of the WoCoServer.
+     * @param serverPort    Port number of the server.
+     * @param connections   Number of connections.
+     * @param rate          Target rate over all connections in documents per second.
+     * @param binary        Whether to ask the server for the binary format.
+     * @throws IOException if a connection cannot be opened or the server does not support
+     * the binary format.
+     */
+    public LoadGenerator(String serverAddress, int serverPort, int connections, double rate, boolean binary) throws IOException {
+        this.rate = rate;
+        this.binary = binary;
+        this.selector = Selector.open();
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverAddress, serverPort));
+            // requests are small compared to the rate, they must not wait for the previous ACK
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (binary) {
+                Protocol.negotiateBinary(channel);
+            }
+            channel.configureBlocking(false);
+            this.connections[i] = new Connection(channel);
+            channel.register(selector, SelectionKey.OP_READ, this.connections[i]);
+        }
+        responseTimes = new LatencyHistogram();
+        serviceTimes = new LatencyHistogram();
+    }
+
+    /**
+     * Sends a document count times at the target rate and waits for all responses.
+     *
+     * @param doc   The document, optionally with a request header.
+     * @param count Number of requests.
+     * @throws IOException if a connection fails.
+     */
+    public void run(String doc, int count) throws IOException {
+        byte[] request = (doc + WoCoServer.SEPARATOR).getBytes(StandardCharsets.ISO_8859_1);
+        double interval = 1000000000.0 / rate;
+
+        startTime = System.nanoTime();
+        long lastPrint = startTime;
+        int completedSincePrint = 0;
+        int issued = 0;
+
+        while (completed < count) {
+            long now = System.nanoTime();
+
+            // issue every request whose intended send time has passed, even if the
+            // connection is still busy with the previous ones
+            while (issued < count && startTime + (long) (issued * interval) <= now) {
+                Connection conn = connections[issued % connections.length];
+                conn.intended.add(startTime + (long) (issued * interval));
+                conn.unsent++;
+                write(conn, request);
+                issued++;
+            }
+
+            // wait for responses until the next request is due, shortly before it is due
+            // the selector is only polled, its timeout has millisecond granularity
+            long wait = (issued < count) ? startTime + (long) (issued * interval) - now : Long.MAX_VALUE;
+            if (wait > 1000000) {
+                selector.select(Math.min(wait / 1000000, 1000));
+            } else {
+                selector.selectNow();
+            }
+
+            for (SelectionKey key : selector.selectedKeys()) {
+                Connection conn = (Connection) key.attachment();
+                if (key.isWritable()) {
+                    write(conn, request);
+                }
+                if (key.isReadable()) {
+                    int responses = read(conn);
+                    completed += responses;
+                    completedSincePrint += responses;
+                }
+            }
+            selector.selectedKeys().clear();
+
+            now = System.nanoTime();
+            if (now - lastPrint >= 1000000000L) {
+                float elapsedSeconds = (float) ((now - lastPrint) / 1000000000.0);
+                System.out.println("Interval time [s], Throughput [ops/s]: " + elapsedSeconds + ", " + completedSincePrint / elapsedSeconds);
+                lastPrint = now;
+                completedSincePrint = 0;
+            }
+        }
+        endTime = System.nanoTime();
+    }
+
+    /**
+     * Writes as many of the unsent requests of a connection as the channel takes.
+     */
+    private void write(Connection conn, byte[] request) throws IOException {
+        while (conn.unsent > 0) {
+            if (conn.current == null) {
+                conn.current = ByteBuffer.wrap(request);
+                conn.sent.add(System.nanoTime());
+            }
+            conn.channel.write(conn.current);
+            if (conn.current.hasRemaining()) {
+                break;
+            }
+            conn.current = null;
+            conn.unsent--;
+        }
+
+        SelectionKey key = conn.channel.keyFor(selector);
+        int ops = (conn.unsent > 0) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Reads the available data of a connection and records the responses it completes.
+     *
+     * @return Number of completed responses.
+     */
+    private int read(Connection conn) throws IOException {
+        ByteBuffer in = conn.input;
+        in.clear();
+        if (conn.channel.read(in) < 0) {
+            throw new IOException("Connection closed by the server");
+        }
+        in.flip();
+
+        int responses = 0;
+        while (in.hasRemaining()) {
+            boolean complete;
+            if (binary) {
+                complete = conn.skipFrame(in);
+            } else {
+                complete = conn.skipLine(in);
+            }
+            if (complete) {
+                long now = System.nanoTime();
+                responseTimes.record(now - conn.intended.poll());
+                serviceTimes.record(now - conn.sent.poll());
+                responses++;
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Prints the results: the final ";"-separated line of WoCoClient, with the response
+     * times corrected for coordinated omission and their 50th, 90th, 99th and 99.9th
+     * percentiles appended, followed by the throughput, the uncorrected service times and
+     * the corrected response time percentiles.
+     *
+     * @param docSize Size of the documents in KiB.
+     * @param clients Number of clients of the experiment, -1 if not given.
+     */
+    public void printStats(int docSize, int clients) {
+        float totalTime = (float) ((endTime - startTime) / 1000000000.0);
+        float tput = completed / totalTime;
+        System.out.println(docSize + ";" + clients + ";" + totalTime + ";" + Utils.calculateAverage(responseTimes)
+                + ";" + Utils.calculateStd(responseTimes) + ";" + tput
+                + ";" + responseTimes.getPercentileMillis(50) + ";" + responseTimes.getPercentileMillis(90)
+                + ";" + responseTimes.getPercentileMillis(99) + ";" + responseTimes.getPercentileMillis(99.9));
+
+        System.out.println("-----");
+        System.out.println("Total time [s], Throughput [ops/s]: " + totalTime + ", " + tput);
+        System.out.println("Target rate [ops/s], Connections: " + rate + ", " + connections.length);
+        System.out.println("Service time without correction avg, p99 [ms]: " + Utils.calculateAverage(serviceTimes)
+                + ", " + serviceTimes.getPercentileMillis(99));
+        Utils.printPercentiles(responseTimes, "Response");
+    }
+
+    /**
+     * Closes the connections.
+     */
+    public void shutDown() {
+        for (Connection conn : connections) {
+            try {
+                conn.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The state of one connection: the requests waiting to be written and the send times
+     * of the requests waiting for their response, which arrive in the order of the requests.
+     */
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer input;
+        private final LongQueue intended;
+        private final LongQueue sent;
+
+        // requests issued but not completely written yet, the first one partially if current is set
+        private int unsent;
+        private ByteBuffer current;
+
+        // bytes of the binary frame still to skip, or -1 while reading its length
+        private int frameRemaining = -1;
+        // whether a header in front of the frame is being skipped, e.g. of an error response
+        private boolean inHeader;
+        private int lengthBytes;
+        private int frameLength;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.input = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            this.intended = new LongQueue();
+            this.sent = new LongQueue();
+        }
+
+        /**
+         * Consumes the input up to the end of a text response, a newline.
+         *
+         * @return Whether a response was completed.
+         */
+        boolean skipLine(ByteBuffer in) {
+            while (in.hasRemaining()) {
+                if (in.get() == '\n') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Consumes the input up to the end of a binary response frame, the length of the
+         * frame can be split over several reads. A header in front of the frame is skipped.
+         *
+         * @return Whether a response was completed.
+         */
+        boolean skipFrame(ByteBuffer in) {
+            if (frameRemaining < 0 && lengthBytes == 0 && !inHeader && in.get(in.position()) == Protocol.HEADER_START) {
+                inHeader = true;
+            }
+            while (inHeader && in.hasRemaining()) {
+                inHeader = in.get() != Protocol.HEADER_END;
+            }
+            if (inHeader) {
+                return false;
+            }
+
+            if (frameRemaining < 0) {
+                while (lengthBytes < 4 && in.hasRemaining()) {
+                    frameLength = (frameLength << 8) | (in.get() & 0xFF);
+                    lengthBytes++;
+                }
+                if (lengthBytes < 4) {
+                    return false;
+                }
+                frameRemaining = frameLength;
+                lengthBytes = 0;
+                frameLength = 0;
+            }
+            int skip = Math.min(frameRemaining, in.remaining());
+            in.position(in.position() + skip);
+            frameRemaining -= skip;
+            if (frameRemaining > 0) {
+                return false;
+            }
+            frameRemaining = -1;
+            return true;
+        }
+    }
+
+    /**
+     * FIFO queue of primitive longs in a growing ring buffer, so recording the send times
+     * does not box them.
+     */
+    private static class LongQueue {
+
+        private long[] values = new long[64];
+        private int head;
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                long[] grown = Arrays.copyOf(values, values.length * 2);
+                // the wrapped part moves behind the rest
+                System.arraycopy(values, 0, grown, values.length, head);
+                values = grown;
+            }
+            values[(head + size) & (values.length - 1)] = value;
+            size++;
+        }
+
+        long poll() {
+            long value = values[head];
+            head = (head + 1) & (values.length - 1);
+            size--;
+            return value;
+        }
+    }
+}
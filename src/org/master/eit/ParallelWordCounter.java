@@ -0,0 +1,209 @@
+package org.master.eit;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+
+/**
+ * Counts the words of a large document on several cores. The document is split into
+ * parts at word boundaries, every part is counted into its own table on a fork/join pool
+ * and the tables are merged. The result is the same as the one of the sequential
+ * {@link WoCoServer#doWordCount(byte[], int, int, WordCountTable, boolean)}.
+ *
+ * With HTML cleaning, whether a space ends a word depends on the tags before it, so the
+ * split happens in three steps: the parts are first scanned in parallel for how they
+ * change the tag depth, then the tag depth at the start of every part is derived from
+ * that, and finally every part moves its start to the first space outside of a tag.
+ */
+public class ParallelWordCounter {
+
+    // smaller parts are not worth the overhead of a task and a table of their own
+    private static final int MIN_PART_SIZE = 32 * 1024;
+
+    // the threads of the pool are daemon threads, it needs no shutdown when the server exits
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * @param threshold   Minimum document size in bytes to count in parallel.
+     * @param parallelism Number of threads of the fork/join pool.
+     */
+    public ParallelWordCounter(int threshold, int parallelism) {
+        this.threshold = threshold;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @param docLen Length of a document in bytes.
+     * @return Whether the document is large enough to be counted in parallel.
+     */
+    public boolean accepts(int docLen) {
+        return docLen >= threshold;
+    }
+
+    /**
+     * Counts the words of a document in parallel and adds them to a table.
+     *
+     * @param doc   Buffer holding the document.
+     * @param off   Offset of the document in doc.
+     * @param len   Length of the document in bytes.
+     * @param wc    A table to store the results in.
+     * @param cMode Whether the document should be cleaned from HTML tags.
+     */
+    public void count(byte[] doc, int off, int len, WordCountTable wc, boolean cMode) {
+        int parts = Math.max(1, Math.min(pool.getParallelism() * 4, len / MIN_PART_SIZE));
+
+        // evenly spaced split points, which are moved to word boundaries further below
+        int[] starts = new int[parts + 1];
+        for (int i = 0; i <= parts; i++) {
+            starts[i] = off + (int) ((long) len * i / parts);
+        }
+
+        // tag depth at every split point
+        int[] depths = new int[parts];
+        if (cMode) {
+            // every part maps the tag depth d at its start to max(d + shift, floor) at its end
+            int[] shift = new int[parts];
+            int[] floor = new int[parts];
+            pool.invoke(new ForEachPart(0, parts, i -> {
+                int s = 0;
+                int f = 0;
+                for (int j = starts[i]; j < starts[i + 1]; j++) {
+                    if (doc[j] == '<') {
+                        s++;
+                        f++;
+                    } else if (doc[j] == '>') {
+                        s--;
+                        f = Math.max(f - 1, 0);
+                    }
+                }
+                shift[i] = s;
+                floor[i] = f;
+            }));
+
+            depths[0] = WordTokenizer.initialTagDepth(doc, off, len);
+            for (int i = 1; i < parts; i++) {
+                depths[i] = Math.max(depths[i - 1] + shift[i - 1], floor[i - 1]);
+            }
+        }
+
+        // move every split point to the next space that ends a word, the first part always
+        // starts at the beginning of the document
+        int[] bounds = new int[parts + 1];
+        bounds[0] = off;
+        bounds[parts] = off + len;
+        pool.invoke(new ForEachPart(1, parts, i -> bounds[i] = nextBoundary(doc, starts[i], starts[i + 1], depths[i], cMode)));
+        for (int i = parts - 1; i > 0; i--) {
+            if (bounds[i] < 0) {
+                bounds[i] = bounds[i + 1];
+            }
+        }
+
+        // all parts but the first start at a space outside of a tag, i.e., at depth 0
+        int[] words = new int[parts];
+        wc.addAll(pool.invoke(new CountTask(doc, bounds, depths[0], cMode, words, 0, parts)));
+
+        int total = 0;
+        for (int w : words) {
+            total += w;
+        }
+        if (total == 0) {
+            // same as the sequential word count, see WordTokenizer.finish()
+            wc.word(doc, off, 0, 0);
+        }
+    }
+
+    /**
+     * Returns the position of the first space in a range that ends a word, i.e., with
+     * cleaning the first one outside of a tag.
+     *
+     * @return Position of the space or -1 if there is none in the range.
+     */
+    private static int nextBoundary(byte[] doc, int from, int to, int tagDepth, boolean cMode) {
+        for (int j = from; j < to; j++) {
+            byte cc = doc[j];
+            if (cc == ' ' && (!cMode || tagDepth == 0)) {
+                return j;
+            } else if (cMode && cc == '<') {
+                tagDepth++;
+            } else if (cMode && cc == '>' && tagDepth > 0) {
+                tagDepth--;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Runs an action for every part in a range of parts.
+     */
+    private static class ForEachPart extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lo;
+        private final int hi;
+        private final IntConsumer action;
+
+        ForEachPart(int lo, int hi, IntConsumer action) {
+            this.lo = lo;
+            this.hi = hi;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= 1) {
+                if (hi > lo) {
+                    action.accept(lo);
+                }
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ForEachPart(lo, mid, action), new ForEachPart(mid, hi, action));
+            }
+        }
+    }
+
+    /**
+     * Counts a range of parts, the tables of the two halves of the range are merged.
+     */
+    private static class CountTask extends RecursiveTask<WordCountTable> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] doc;
+        private final int[] bounds;
+        private final int firstDepth;
+        private final boolean cMode;
+        private final int[] words;
+        private final int lo;
+        private final int hi;
+
+        CountTask(byte[] doc, int[] bounds, int firstDepth, boolean cMode, int[] words, int lo, int hi) {
+            this.doc = doc;
+            this.bounds = bounds;
+            this.firstDepth = firstDepth;
+            this.cMode = cMode;
+            this.words = words;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected WordCountTable compute() {
+            if (hi - lo == 1) {
+                WordCountTable wc = new WordCountTable(1024);
+                int depth = (lo == 0) ? firstDepth : 0;
+                words[lo] = new WordTokenizer(wc).tokenizePart(doc, bounds[lo], bounds[lo + 1] - bounds[lo], cMode, depth);
+                return wc;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            CountTask right = new CountTask(doc, bounds, firstDepth, cMode, words, mid, hi);
+            right.fork();
+            WordCountTable left = new CountTask(doc, bounds, firstDepth, cMode, words, lo, mid).compute();
+            left.addAll(right.join());
+            return left;
+        }
+    }
+}
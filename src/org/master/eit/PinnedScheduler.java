@@ -0,0 +1,90 @@
+package org.master.eit;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Pins every client to one single-threaded executor, assigned round-robin when the client
+ * sends its first document. Cheap, but a few heavy clients pinned to the same executor
+ * wait for each other while other executors are idle.
+ */
+public class PinnedScheduler implements DocumentScheduler {
+
+    private final ArrayList<ExecutorService> threadPool;
+    private final ConcurrentHashMap<Integer, Integer> clientThreadMap;
+    private final AtomicInteger nextThreadToAllocate;
+    private final WorkerUtilization utilization;
+    // tasks waiting in the queue of every executor
+    private final AtomicIntegerArray queued;
+
+    /**
+     * @param threadCount Number of worker threads.
+     */
+    public PinnedScheduler(int threadCount) {
+        threadPool = new ArrayList<>();
+        for (int i = 0; i < threadCount; i += 1) {
+            threadPool.add(Executors.newFixedThreadPool(1));
+        }
+        clientThreadMap = new ConcurrentHashMap<>();
+        nextThreadToAllocate = new AtomicInteger();
+        utilization = new WorkerUtilization(threadCount);
+        queued = new AtomicIntegerArray(threadCount);
+    }
+
+    @Override
+    public void execute(int clientId, Runnable task) {
+        int thread = clientThreadMap.computeIfAbsent(clientId,
+                id -> Math.floorMod(nextThreadToAllocate.getAndIncrement(), threadPool.size()));
+
+        queued.incrementAndGet(thread);
+        threadPool.get(thread).execute(() -> {
+            queued.decrementAndGet(thread);
+            long startTime = System.nanoTime();
+            task.run();
+            utilization.record(thread, System.nanoTime() - startTime);
+        });
+    }
+
+    @Override
+    public void clientDisconnected(int clientId) {
+        clientThreadMap.remove(clientId);
+    }
+
+    @Override
+    public WorkerUtilization getUtilization() {
+        return utilization;
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return threadPool.size();
+    }
+
+    @Override
+    public int getQueueDepth(int worker) {
+        return queued.get(worker);
+    }
+
+    @Override
+    public int getPendingTasks() {
+        int pending = 0;
+        for (int i = 0; i < queued.length(); i++) {
+            pending += queued.get(i);
+        }
+        return pending;
+    }
+
+    /**
+     * A client that has not sent a document yet is not assigned to a worker and is never
+     * considered full.
+     */
+    @Override
+    public boolean isFull(int clientId, int limit) {
+        Integer thread = clientThreadMap.get(clientId);
+        return thread != null && queued.get(thread) >= limit;
+    }
+}
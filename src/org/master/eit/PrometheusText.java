@@ -0,0 +1,75 @@
+package org.master.eit;
+
+/**
+ * Builds metrics in the Prometheus text exposition format: every metric family starts
+ * with a HELP and a TYPE line, followed by its samples, one per line, e.g.
+ * "woco_documents_total 1234" or "woco_queue_depth{worker="0"} 3".
+ */
+public class PrometheusText {
+
+    // quantiles of the latency summaries
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final StringBuilder sb = new StringBuilder();
+
+    /**
+     * Starts a metric family.
+     *
+     * @param name Name of the metric.
+     * @param type counter, gauge or summary.
+     * @param help Description of the metric.
+     * @return This builder.
+     */
+    public PrometheusText family(String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * Adds a sample to the current family.
+     *
+     * @param name   Name of the metric, for a summary with the suffix of the sample.
+     * @param labels Labels of the sample, e.g. worker="0", or null.
+     * @param value  The value.
+     * @return This builder.
+     */
+    public PrometheusText sample(String name, String labels, double value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+        return this;
+    }
+
+    /**
+     * Adds the quantiles, the sum and the count of durations to the current summary family,
+     * in seconds.
+     *
+     * @param name   Name of the summary.
+     * @param labels Labels of the durations, e.g. stage="receive", or null.
+     * @param times  The durations.
+     * @return This builder.
+     */
+    public PrometheusText summary(String name, String labels, LatencyHistogram times) {
+        String prefix = (labels == null) ? "" : labels + ",";
+        for (double quantile : QUANTILES) {
+            sample(name, prefix + "quantile=\"" + quantile + "\"", times.getPercentileMillis(quantile * 100) / 1000.0);
+        }
+        sample(name + "_sum", labels, (double) times.getMeanMillis() * times.getCount() / 1000.0);
+        sample(name + "_count", labels, times.getCount());
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
@@ -0,0 +1,331 @@
+package org.master.eit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Constants and helpers for the protocol between WoCoClient and WoCoServer.
+ *
+ * A request is a document terminated by {@link WoCoServer#SEPARATOR}, answered by the
+ * word counts as "word,count," pairs terminated by a newline. A request can start with a
+ * header that carries options: {@link #HEADER_START}, fields separated by ';', each either
+ * a name or "name=value", and {@link #HEADER_END}, followed by the document. A header
+ * whose first field is a command, e.g. {@link #HELLO}, does not carry a document.
+ *
+ * Requests can be pipelined, i.e. sent without waiting for the responses to the previous
+ * ones. The responses are sent in the order of the requests. A request with an
+ * "{@link #ID}=value" header field is answered with a response that starts with a header
+ * carrying the same field, e.g. SOH "id=42" STX followed by the word counts, so responses
+ * can also be matched to requests by their ID.
+ *
+ * A document with a "{@link #TOP}=k" header field is answered with only the k most frequent
+ * words of the document, in descending order of their counts. With the additional
+ * "{@link #APPROX}" field, the server counts the document with a Space-Saving sketch of a
+ * fixed size instead of counting every word, which bounds the memory and the time spent on
+ * documents with very many distinct words. The counts are then upper bounds of the true
+ * counts, see {@link SpaceSavingSketch}.
+ *
+ * Options that apply to the whole connection are negotiated with a hello request sent
+ * before the first document. The server answers it with a text line starting with "ok"
+ * and the options it accepted, e.g. "ok;format=binary". The client has to wait for the
+ * answer before it sends further requests.
+ *
+ * With "{@link #COMPRESS}={@link #COMPRESS_DEFLATE}" in the hello, everything sent after
+ * the answer is compressed, in both directions: each direction is one zlib stream, and
+ * every request and every response ends with a sync flush, e.g. by a
+ * java.util.zip.DeflaterOutputStream with syncFlush enabled. The answer itself is not
+ * compressed.
+ *
+ * A query command, "query;top=n" or "query;words=a,b,c", asks for the word counts over all
+ * documents the server has answered. It is answered like a document in the negotiated
+ * format, with the n most frequent words in descending order of their counts or with the
+ * counts of the given words. A server without the aggregate answers with no words. A query
+ * whose n is not a positive number is answered with a header carrying
+ * "{@link #ERROR}={@link #ERROR_INVALID}" and no words.
+ *
+ * A request with a "{@link #BATCH}" header field carries several documents, separated by
+ * {@link #DOCUMENT_SEPARATOR}, and is answered by one response holding the results of all
+ * of them in the order of the documents, each serialized like the response to a single
+ * document. A header of the response, e.g. for the ID, precedes the first result only. The
+ * other fields of the header apply to every document of the batch. Batches let many small
+ * documents share one round trip.
+ *
+ * A server under overload may reject a document instead of counting it. The response then
+ * starts with a header carrying "{@link #ERROR}={@link #ERROR_OVERLOADED}", and the ID of
+ * the request if it had one, followed by a response without words in the negotiated format,
+ * one for every document of a batch.
+ * The document can be sent again later.
+ *
+ * In the binary format, every response is a frame of a 4 byte big-endian length,
+ * followed by that many bytes: the number of words as a varint and, for every word, the
+ * length of the word as a varint, its ASCII bytes and its count as a varint.
+ *
+ * The "{@link #FORMAT_IDS}" format replaces the words by IDs of a vocabulary the server
+ * shares among all clients, see {@link Vocabulary}. Every response is a frame like in the
+ * binary format, whose payload starts with the dictionary delta: the number of words the
+ * connection has not received before as a varint and, for every such word, its ID, its
+ * length as varints and its ASCII bytes. The number of words of the response follows as a
+ * varint and, for every word, its ID + 1 and its count as varints. An ID + 1 of 0 stands for
+ * a word without an ID, because the vocabulary is full; its length as a varint and its
+ * bytes follow before the count. An ID stays valid for the rest of the connection, so the
+ * client has to read the deltas of all responses in order, see {@link WordDictionary}.
+ */
+public class Protocol {
+
+    // ASCII "start of heading" and "start of text"
+    public static final byte HEADER_START = 0x01;
+    public static final byte HEADER_END = 0x02;
+    // ASCII "record separator", between the documents of a batch
+    public static final byte DOCUMENT_SEPARATOR = 0x1E;
+
+    public static final String HELLO = "hello";
+    public static final String QUERY = "query";
+    public static final String ID = "id";
+    public static final String TOP = "top";
+    public static final String APPROX = "approx";
+    public static final String BATCH = "batch";
+    public static final String WORDS = "words";
+    public static final String FORMAT = "format";
+    public static final String FORMAT_TEXT = "text";
+    public static final String FORMAT_BINARY = "binary";
+    public static final String FORMAT_IDS = "ids";
+    public static final String COMPRESS = "compress";
+    public static final String COMPRESS_DEFLATE = "deflate";
+    public static final String ERROR = "error";
+    public static final String ERROR_OVERLOADED = "overloaded";
+    public static final String ERROR_INVALID = "invalid";
+
+    private static final byte[] NO_HEADER = new byte[0];
+
+    /**
+     * Builds a request header.
+     *
+     * @param fields Header fields, each either a name or "name=value".
+     * @return The header, to be followed by the document and the separator.
+     */
+    public static String header(String... fields) {
+        return (char) HEADER_START + String.join(";", fields) + (char) HEADER_END;
+    }
+
+    /**
+     * @param requestId ID of a request, or null.
+     * @return The header that starts the response to the request, empty if it has no ID.
+     */
+    public static byte[] idHeader(String requestId) {
+        if (requestId == null) {
+            return NO_HEADER;
+        }
+        return header(ID + "=" + requestId).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param error     The error, e.g. {@link #ERROR_OVERLOADED}.
+     * @param requestId ID of the failed request, or null.
+     * @return The header that starts the error response to the request.
+     */
+    public static byte[] errorHeader(String error, String requestId) {
+        String field = ERROR + "=" + error;
+        String header = (requestId == null) ? header(field) : header(ID + "=" + requestId, field);
+        return header.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param fields Fields of a request header.
+     * @return Whether the request is a command that carries no document.
+     */
+    public static boolean isCommand(HashMap<String, String> fields) {
+        return fields.containsKey(HELLO) || fields.containsKey(QUERY);
+    }
+
+    /**
+     * @return Whether the request in buf starts with a header.
+     */
+    public static boolean hasHeader(byte[] buf, int off, int len) {
+        return len > 0 && buf[off] == HEADER_START;
+    }
+
+    /**
+     * Parses the header of a request. Fields without a value are mapped to an empty String.
+     *
+     * @param buf    Buffer holding the request.
+     * @param off    Offset of the request, pointing to {@link #HEADER_START}.
+     * @param len    Length of the request in bytes.
+     * @param fields Map the fields are added to.
+     * @return Offset of the document following the header.
+     * @throws IllegalArgumentException if the header is not terminated.
+     */
+    public static int parseHeader(byte[] buf, int off, int len, HashMap<String, String> fields) {
+        int end = off + len;
+        int headerEnd = off + 1;
+        while (headerEnd < end && buf[headerEnd] != HEADER_END) {
+            headerEnd++;
+        }
+        if (headerEnd == end) {
+            throw new IllegalArgumentException("Unterminated request header");
+        }
+
+        String header = new String(buf, off + 1, headerEnd - off - 1, StandardCharsets.ISO_8859_1);
+        for (String field : header.split(";")) {
+            int eq = field.indexOf('=');
+            if (eq < 0) {
+                fields.put(field, "");
+            } else {
+                fields.put(field.substring(0, eq), field.substring(eq + 1));
+            }
+        }
+        return headerEnd + 1;
+    }
+
+    /**
+     * Sends a hello request for the binary format on a blocking channel and reads the ack,
+     * before the first document is sent.
+     *
+     * @param channel A connected channel in blocking mode.
+     * @throws IOException if the connection fails or the server does not support the
+     * binary format.
+     */
+    public static void negotiateBinary(SocketChannel channel) throws IOException {
+        String hello = header(HELLO, FORMAT + "=" + FORMAT_BINARY) + WoCoServer.SEPARATOR;
+        ByteBuffer request = ByteBuffer.wrap(hello.getBytes(StandardCharsets.ISO_8859_1));
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+
+        // the ack is a single text line, read byte by byte so nothing after it is consumed
+        StringBuilder ack = new StringBuilder();
+        ByteBuffer b = ByteBuffer.allocate(1);
+        while (true) {
+            b.clear();
+            if (channel.read(b) < 0) {
+                throw new IOException("Connection closed during the hello");
+            }
+            if (b.get(0) == '\n') {
+                break;
+            }
+            ack.append((char) b.get(0));
+        }
+        if (!ack.toString().startsWith("ok;") || ack.indexOf(FORMAT + "=" + FORMAT_BINARY) < 0) {
+            throw new IOException("The server does not support the binary format");
+        }
+    }
+
+    /**
+     * @return Number of bytes of the varint encoding of a non-negative int.
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a non-negative int as a varint: 7 bits per byte, least significant first,
+     * the highest bit set on all bytes but the last.
+     */
+    public static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads a varint written by {@link #putVarint(ByteBuffer, int)}.
+     */
+    public static int getVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Decodes the payload of a binary response frame, i.e. without its length, and passes
+     * every word with its count to a consumer. Does not allocate anything.
+     *
+     * @param frame    Heap buffer positioned at the start of the payload, it is consumed.
+     * @param consumer Receives the words and their counts.
+     * @return Number of words in the response.
+     */
+    public static int decodeBinary(ByteBuffer frame, WordCountConsumer consumer) {
+        byte[] buf = frame.array();
+        int words = getVarint(frame);
+        for (int i = 0; i < words; i++) {
+            int len = getVarint(frame);
+            int off = frame.arrayOffset() + frame.position();
+            frame.position(frame.position() + len);
+            consumer.wordCount(buf, off, len, getVarint(frame));
+        }
+        return words;
+    }
+
+    /**
+     * Decodes the payload of a response frame in the {@link #FORMAT_IDS} format, i.e. without
+     * its length: adds its new words to the dictionary and passes every word with its count
+     * to a consumer.
+     *
+     * @param frame      Heap buffer positioned at the start of the payload, it is consumed.
+     * @param dictionary The words of the previous responses of the connection.
+     * @param consumer   Receives the words and their counts, or null if only the new words
+     *                   are needed.
+     * @return Number of words in the response.
+     * @throws IllegalArgumentException if the response refers to a word that is not in the
+     * dictionary.
+     */
+    public static int decodeWordIds(ByteBuffer frame, WordDictionary dictionary, WordCountConsumer consumer) {
+        byte[] buf = frame.array();
+        int newWords = getVarint(frame);
+        for (int i = 0; i < newWords; i++) {
+            int id = getVarint(frame);
+            int len = getVarint(frame);
+            dictionary.put(id, buf, frame.arrayOffset() + frame.position(), len);
+            frame.position(frame.position() + len);
+        }
+
+        int words = getVarint(frame);
+        if (consumer == null) {
+            return words;
+        }
+        for (int i = 0; i < words; i++) {
+            int code = getVarint(frame);
+            if (code == 0) {
+                int len = getVarint(frame);
+                int off = frame.arrayOffset() + frame.position();
+                frame.position(frame.position() + len);
+                consumer.wordCount(buf, off, len, getVarint(frame));
+            } else {
+                byte[] word = dictionary.get(code - 1);
+                if (word == null) {
+                    throw new IllegalArgumentException("Unknown word ID " + (code - 1));
+                }
+                consumer.wordCount(word, 0, word.length, getVarint(frame));
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Receives the words of a decoded response.
+     */
+    public interface WordCountConsumer {
+
+        /**
+         * @param buf   Buffer holding the ASCII bytes of the word, only valid during the call.
+         * @param off   Offset of the word in buf.
+         * @param len   Length of the word in bytes.
+         * @param count Number of occurrences of the word.
+         */
+        void wordCount(byte[] buf, int off, int len, int count);
+    }
+}
@@ -0,0 +1,236 @@
+package org.master.eit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An I/O thread of the server. Every reactor has its own Selector and read buffer and
+ * serves the connections the acceptor hands over to it. The reactors share nothing but
+ * the WoCoServer, so the number of connections the server can serve grows with the number
+ * of reactors.
+ *
+ * The reactor also writes the responses of its connections. Responses are queued in the
+ * {@link ClientSession} of the connection; whatever the socket does not take right away is
+ * written once the selector reports the channel as writable.
+ */
+public class Reactor implements Runnable {
+
+    private final WoCoServer server;
+    private final boolean cMode;
+    private final Selector selector;
+    private final ByteBuffer bb;
+
+    // connections accepted but not yet registered with the selector
+    private final ConcurrentLinkedQueue<SocketChannel> newClients;
+    private final AtomicInteger clientCount;
+    // sessions with responses queued by other threads
+    private final ConcurrentLinkedQueue<ClientSession> pendingWrites;
+    // paused sessions resumed by other threads
+    private final ConcurrentLinkedQueue<ClientSession> pendingReads;
+    private Thread thread;
+
+    /**
+     * @param server  The server processing the received documents.
+     * @param cMode   Whether HTML cleaning is enabled.
+     * @param bufSize Size of the read buffer in bytes.
+     * @throws IOException if the selector cannot be opened.
+     */
+    public Reactor(WoCoServer server, boolean cMode, int bufSize) throws IOException {
+        this.server = server;
+        this.cMode = cMode;
+        this.selector = Selector.open();
+        this.bb = ByteBuffer.allocate(bufSize);
+        this.newClients = new ConcurrentLinkedQueue<>();
+        this.clientCount = new AtomicInteger();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        this.pendingReads = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Hands a new connection over to the reactor. Can be called from any thread.
+     *
+     * @param client A connected channel in non-blocking mode.
+     */
+    public void addClient(SocketChannel client) {
+        clientCount.incrementAndGet();
+        newClients.add(client);
+        // the reactor might be blocked in select(), which does not pick up new registrations
+        selector.wakeup();
+    }
+
+    /**
+     * @return Number of connections served by this reactor.
+     */
+    public int getClientCount() {
+        return clientCount.get();
+    }
+
+    /**
+     * Asks the reactor to write the queued responses of a session. Can be called from any
+     * thread; on the reactor thread itself the responses are written right away.
+     *
+     * @param session A session served by this reactor.
+     */
+    public void requestWrite(ClientSession session) {
+        if (Thread.currentThread() == thread) {
+            writeTo(session);
+        } else if (session.writeScheduled.compareAndSet(false, true)) {
+            pendingWrites.add(session);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops reading from the connection of a session. Only called on the reactor thread.
+     *
+     * @param session A session served by this reactor.
+     */
+    void stopReading(ClientSession session) {
+        SelectionKey key = session.getChannel().keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Asks the reactor to continue reading from the connection of a paused session. Can be
+     * called from any thread.
+     *
+     * @param session A session served by this reactor.
+     */
+    void requestRead(ClientSession session) {
+        pendingReads.add(session);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (true) {
+            try {
+                // blocks until at least one channel is ready or a new client is added
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            SocketChannel newClient;
+            while ((newClient = newClients.poll()) != null) {
+                try {
+                    newClient.register(selector, SelectionKey.OP_READ, new ClientSession(newClient, this));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeClient(newClient);
+                }
+            }
+
+            ClientSession session;
+            while ((session = pendingWrites.poll()) != null) {
+                // responses queued after this are scheduled again
+                session.writeScheduled.set(false);
+                writeTo(session);
+            }
+
+            while ((session = pendingReads.poll()) != null) {
+                SelectionKey key = session.getChannel().keyFor(selector);
+                // the session may have been paused again in the meantime
+                if (key != null && key.isValid() && !session.isReadPaused()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+
+            // iterate through the keys of the ready channels
+            Set<SelectionKey> readyKeys = selector.selectedKeys();
+            Iterator<SelectionKey> iterator = readyKeys.iterator();
+
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+
+                if (key.isValid() && key.isWritable()) {
+                    writeTo((ClientSession) key.attachment());
+                }
+
+                if (key.isValid() && key.isReadable()) {
+                    SocketChannel client = (SocketChannel) key.channel();
+                    try {
+                        readFrom(client, (ClientSession) key.attachment());
+                    } catch (IOException e) {
+                        // connection reset by the client, or a malformed request
+                        key.cancel();
+                        closeClient(client);
+                    } catch (RuntimeException e) {
+                        // a failure serving one connection must not stop the reactor with
+                        // all the other connections it serves
+                        e.printStackTrace();
+                        key.cancel();
+                        closeClient(client);
+                    }
+                }
+            }
+        }
+    }
+
+    private void readFrom(SocketChannel client, ClientSession session) throws IOException {
+        bb.clear();
+
+        int readCnt = client.read(bb);
+
+        if (readCnt > 0) {
+            // receiveData calls the word count and sends the results, in single-thread mode
+            // right away, otherwise from the worker
+            server.receiveData(session, bb.array(), readCnt, cMode);
+        } else if (readCnt < 0) {
+            client.keyFor(selector).cancel();
+            closeClient(client);
+        }
+    }
+
+    /**
+     * Writes the queued responses of a session and waits for the channel to become
+     * writable if it does not take all of them.
+     */
+    private void writeTo(ClientSession session) {
+        SocketChannel client = session.getChannel();
+        SelectionKey key = client.keyFor(selector);
+        if (key == null || !key.isValid()) {
+            // the connection has been closed
+            session.discardOutbound();
+            return;
+        }
+
+        try {
+            if (session.flush()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            // connection reset by the client
+            key.cancel();
+            closeClient(client);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            key.cancel();
+            closeClient(client);
+        }
+    }
+
+    private void closeClient(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        clientCount.decrementAndGet();
+        server.clientDisconnected(client.hashCode());
+    }
+}
@@ -0,0 +1,77 @@
+package org.master.eit;
+
+import java.util.HashMap;
+
+/**
+ * The options a document request carries in its header, see {@link Protocol}.
+ */
+public class RequestOptions {
+
+    /**
+     * Options of a request without a header.
+     */
+    public static final RequestOptions NONE = new RequestOptions(null, 0, false, false);
+
+    private final String id;
+    private final int top;
+    private final boolean approximate;
+    private final boolean batch;
+
+    private RequestOptions(String id, int top, boolean approximate, boolean batch) {
+        this.id = id;
+        this.top = top;
+        this.approximate = approximate;
+        this.batch = batch;
+    }
+
+    /**
+     * Reads the options from the header of a request. An invalid number of top words is
+     * ignored, i.e. the response contains all words.
+     *
+     * @param header The header fields of the request, null if it has none.
+     * @return The options of the request.
+     */
+    public static RequestOptions parse(HashMap<String, String> header) {
+        if (header == null) {
+            return NONE;
+        }
+        int top = 0;
+        if (header.containsKey(Protocol.TOP)) {
+            try {
+                top = Math.max(0, Integer.parseInt(header.get(Protocol.TOP)));
+            } catch (NumberFormatException e) {
+                // invalid number of words
+            }
+        }
+        return new RequestOptions(header.get(Protocol.ID), top, top > 0 && header.containsKey(Protocol.APPROX),
+                header.containsKey(Protocol.BATCH));
+    }
+
+    /**
+     * @return ID of the request, or null.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return Number of words the response is limited to, 0 for all words.
+     */
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * @return Whether the top words are counted with a sketch instead of exactly.
+     */
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    /**
+     * @return Whether the request carries several documents.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+}
@@ -0,0 +1,188 @@
+package org.master.eit;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of serialized responses for documents that are sent again. Entries are
+ * keyed by a 128 bit hash of the raw document bytes, its length, the cleaning mode, the
+ * response format and the number of top words requested, so a hit skips the cleaning, the
+ * word count and the serialization.
+ *
+ * The cache holds at most a given number of bytes, counting the responses plus a fixed
+ * overhead per entry, and evicts the least recently used entries first. Responses larger
+ * than an eighth of the capacity are not cached, they would evict too many others.
+ */
+public class ResultCache {
+
+    // estimated memory of an entry besides its response: key, map entry and array header
+    private static final int ENTRY_OVERHEAD = 112;
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+
+    private final long capacity;
+    private final LinkedHashMap<Key, byte[]> entries;
+    private long size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity Maximum memory of the cached entries in bytes.
+     */
+    public ResultCache(long capacity) {
+        this.capacity = capacity;
+        // access order turns the map into an LRU list, the eldest entry comes first
+        this.entries = new LinkedHashMap<>(1024, 0.75f, true);
+    }
+
+    /**
+     * Computes the key of a document.
+     *
+     * @param doc       Buffer holding the document.
+     * @param off       Offset of the document in doc.
+     * @param len       Length of the document in bytes.
+     * @param cleanHtml Whether HTML cleaning is enabled.
+     * @param binary    Whether the response is serialized in the binary format.
+     * @param top       Number of words the response is limited to, 0 for all words.
+     * @param approx    Whether the top words are counted approximately.
+     * @return The key of the document.
+     */
+    public static Key key(byte[] doc, int off, int len, boolean cleanHtml, boolean binary, int top, boolean approx) {
+        // two independent lanes over 8 byte words, mixed like the finalizer of MurmurHash3
+        ByteBuffer words = ByteBuffer.wrap(doc, off, len).order(ByteOrder.LITTLE_ENDIAN);
+        long h1 = PRIME1 ^ len;
+        long h2 = PRIME2 ^ len;
+        int end = off + len;
+        int i = off;
+        for (; i + 8 <= end; i += 8) {
+            long word = words.getLong(i);
+            h1 = Long.rotateLeft(h1 ^ (word * PRIME3), 31) * PRIME1;
+            h2 = Long.rotateLeft(h2 ^ (word * PRIME4), 27) * PRIME2;
+        }
+        for (; i < end; i++) {
+            h1 = Long.rotateLeft(h1 ^ ((doc[i] & 0xFF) * PRIME3), 11) * PRIME1;
+            h2 = Long.rotateLeft(h2 ^ ((doc[i] & 0xFF) * PRIME4), 13) * PRIME2;
+        }
+        int flags = (cleanHtml ? 1 : 0) | (binary ? 2 : 0) | (approx ? 4 : 0);
+        return new Key(mix(h1), mix(h2 ^ h1), len, flags, top);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Looks up the response to a document and counts a hit or a miss.
+     *
+     * @param key The key of the document.
+     * @return The serialized response, without a request header, or null.
+     */
+    public synchronized byte[] get(Key key) {
+        byte[] response = entries.get(key);
+        if (response != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return response;
+    }
+
+    /**
+     * Stores the response to a document, evicting the least recently used entries if the
+     * cache is full.
+     *
+     * @param key      The key of the document.
+     * @param response The serialized response, its remaining bytes are copied.
+     * @param skip     Number of bytes at the start of the response that are not cached, i.e.
+     *                 the request header.
+     */
+    public void put(Key key, ByteBuffer response, int skip) {
+        int length = response.remaining() - skip;
+        if (ENTRY_OVERHEAD + length > capacity / 8) {
+            return;
+        }
+        byte[] copy = new byte[length];
+        ByteBuffer src = response.duplicate();
+        src.position(src.position() + skip);
+        src.get(copy);
+
+        synchronized (this) {
+            byte[] previous = entries.put(key, copy);
+            size += ENTRY_OVERHEAD + length;
+            if (previous != null) {
+                size -= ENTRY_OVERHEAD + previous.length;
+            }
+
+            Iterator<Map.Entry<Key, byte[]>> eldest = entries.entrySet().iterator();
+            while (size > capacity && eldest.hasNext()) {
+                size -= ENTRY_OVERHEAD + eldest.next().getValue().length;
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Resets the counters, the cached entries are kept.
+     */
+    public synchronized void resetCounters() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /**
+     * @return The counters and size of the cache as "Result cache: hits,misses,evictions,entries,bytes".
+     */
+    public synchronized String report() {
+        return "Result cache: " + hits + "," + misses + "," + evictions + "," + entries.size() + "," + size;
+    }
+
+    /**
+     * Identifies a document by the hash of its bytes and the options its response depends on.
+     */
+    public static final class Key {
+
+        private final long hash1;
+        private final long hash2;
+        private final int length;
+        private final int flags;
+        private final int top;
+
+        private Key(long hash1, long hash2, int length, int flags, int top) {
+            this.hash1 = hash1;
+            this.hash2 = hash2;
+            this.length = length;
+            this.flags = flags;
+            this.top = top;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash1 == other.hash1 && hash2 == other.hash2 && length == other.length && flags == other.flags
+                    && top == other.top;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) hash1;
+        }
+    }
+}
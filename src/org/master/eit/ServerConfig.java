@@ -0,0 +1,232 @@
+package org.master.eit;
+
+/**
+ * Command line configuration of the WoCoServer. Besides the four positional parameters,
+ * optional features are enabled with options of the form "--name=value".
+ */
+public class ServerConfig {
+
+    public static final String USAGE = "Usage: <listenaddress> <listenport> <cleaning> <threadcount> [options]\n"
+            + "Options:\n"
+            + "  --mode=<name>          reactors (default) or threads, i.e. one (virtual) thread per connection\n"
+            + "  --reactors=<n>         number of I/O threads serving the connections\n"
+            + "  --scheduler=<name>     stealing (default) or pinned, how documents are assigned to worker threads\n"
+            + "  --split=<KiB>          count documents of at least this size on several cores\n"
+            + "  --splitthreads=<n>     number of threads counting the parts of a document\n"
+            + "  --streaming=<bool>     count documents while they are received, cannot be combined with --split\n"
+            + "  --cache=<MiB>          cache the responses to repeated documents in at most this much memory\n"
+            + "  --aggregate=<bool>     keep word counts over all documents for query commands\n"
+            + "  --admin=<port>         serve live metrics in the Prometheus format at /metrics on this port\n"
+            + "  --queue=<n>            maximum documents waiting per worker thread (default 256), 0 for unbounded\n"
+            + "  --overload=<policy>    pause (default) reading from clients whose queue is full, or reject their documents\n"
+            + "  --vocabulary=<n>       maximum words with an ID for clients using word IDs (default 1048576), 0 to disable";
+
+    private String listenAddress;
+    private int listenPort;
+    private boolean cleaning;
+    private int threadCount;
+
+    private boolean threadPerConnection = false;
+    private int reactorCount = 1;
+    private boolean workStealing = true;
+    private int splitThreshold = 0;
+    private int splitThreads = Runtime.getRuntime().availableProcessors();
+    private boolean streaming = false;
+    private long cacheSize = 0;
+    private boolean aggregate = false;
+    private int adminPort = 0;
+    private int queueLimit = 256;
+    private boolean rejectOnOverload = false;
+    private int vocabularySize = 1 << 20;
+
+    /**
+     * Parses the command line of the server.
+     *
+     * @param args Command line arguments.
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    public static ServerConfig parse(String[] args) {
+        if (args.length < 4) {
+            throw new IllegalArgumentException("Missing arguments");
+        }
+
+        ServerConfig config = new ServerConfig();
+        config.listenAddress = args[0];
+        config.listenPort = Integer.parseInt(args[1]);
+        config.cleaning = Boolean.parseBoolean(args[2]);
+        config.threadCount = Integer.parseInt(args[3]);
+
+        for (int i = 4; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (!args[i].startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option: " + args[i]);
+            }
+            String name = args[i].substring(2, eq);
+            String value = args[i].substring(eq + 1);
+
+            switch (name) {
+                case "mode":
+                    if (!value.equals("reactors") && !value.equals("threads")) {
+                        throw new IllegalArgumentException("Unknown mode: " + value);
+                    }
+                    config.threadPerConnection = value.equals("threads");
+                    break;
+                case "reactors":
+                    config.reactorCount = Integer.parseInt(value);
+                    break;
+                case "scheduler":
+                    if (!value.equals("stealing") && !value.equals("pinned")) {
+                        throw new IllegalArgumentException("Unknown scheduler: " + value);
+                    }
+                    config.workStealing = value.equals("stealing");
+                    break;
+                case "split":
+                    config.splitThreshold = Integer.parseInt(value) * 1024;
+                    break;
+                case "splitthreads":
+                    config.splitThreads = Integer.parseInt(value);
+                    break;
+                case "streaming":
+                    config.streaming = Boolean.parseBoolean(value);
+                    break;
+                case "cache":
+                    config.cacheSize = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "aggregate":
+                    config.aggregate = Boolean.parseBoolean(value);
+                    break;
+                case "admin":
+                    config.adminPort = Integer.parseInt(value);
+                    break;
+                case "queue":
+                    config.queueLimit = Integer.parseInt(value);
+                    break;
+                case "overload":
+                    if (!value.equals("pause") && !value.equals("reject")) {
+                        throw new IllegalArgumentException("Unknown overload policy: " + value);
+                    }
+                    config.rejectOnOverload = value.equals("reject");
+                    break;
+                case "vocabulary":
+                    config.vocabularySize = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        // a streamed document is never complete in memory, so it cannot be split
+        if (config.streaming && config.splitThreshold > 0) {
+            throw new IllegalArgumentException("--streaming cannot be combined with --split");
+        }
+        // the cache is looked up with the complete document, a streamed one is counted before
+        if (config.streaming && config.cacheSize > 0) {
+            throw new IllegalArgumentException("--streaming cannot be combined with --cache");
+        }
+        // the count of a streamed document starts before it is complete, it cannot be rejected
+        if (config.streaming && config.rejectOnOverload) {
+            throw new IllegalArgumentException("--streaming cannot be combined with --overload=reject");
+        }
+
+        return config;
+    }
+
+    public String getListenAddress() {
+        return listenAddress;
+    }
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    public boolean isCleaning() {
+        return cleaning;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * @return Whether every connection is served by a (virtual) thread of its own with
+     * blocking I/O instead of by the reactors. The thread count is ignored in this mode.
+     */
+    public boolean isThreadPerConnection() {
+        return threadPerConnection;
+    }
+
+    public int getReactorCount() {
+        return reactorCount;
+    }
+
+    /**
+     * @return Whether the worker threads steal clients from each other, otherwise every
+     * client is pinned to one worker.
+     */
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    /**
+     * @return Minimum document size in bytes for counting on several cores, 0 if disabled.
+     */
+    public int getSplitThreshold() {
+        return splitThreshold;
+    }
+
+    public int getSplitThreads() {
+        return splitThreads;
+    }
+
+    /**
+     * @return Whether documents are counted while they are received.
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return Maximum memory of the result cache in bytes, 0 if disabled.
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @return Whether word counts over all documents are kept for queries.
+     */
+    public boolean isAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * @return Port of the admin endpoint serving the metrics, 0 if disabled.
+     */
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    /**
+     * @return Maximum number of tasks waiting per worker thread, 0 if unbounded.
+     */
+    public int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /**
+     * @return Whether documents are rejected when their worker queue is full, otherwise the
+     * server stops reading from the connection.
+     */
+    public boolean isRejectOnOverload() {
+        return rejectOnOverload;
+    }
+
+    /**
+     * @return Maximum number of words of the vocabulary for responses with word IDs, 0 if
+     * disabled.
+     */
+    public int getVocabularySize() {
+        return vocabularySize;
+    }
+}
@@ -0,0 +1,226 @@
+package org.master.eit;
+
+import java.util.Arrays;
+
+/**
+ * Approximate counts of the most frequent words of a document in a fixed amount of memory,
+ * with the Space-Saving algorithm: the sketch keeps a fixed number of counters, and a word
+ * that has no counter takes over the counter with the smallest count, inheriting that
+ * count. Every count is an upper bound that overestimates the true count by at most the
+ * number of words of the document divided by the number of counters, and every word that
+ * occurs more often than that is guaranteed to have a counter.
+ *
+ * Like WordCountTable, the sketch works on primitive arrays and does not allocate anything
+ * while counting. It is meant to be used by a single thread at a time.
+ */
+public class SpaceSavingSketch implements WordSink {
+
+    private final int capacity;
+
+    // the counters
+    private final int[] hashes;
+    private final int[] lengths;
+    private final int[] counts;
+    private final byte[][] words;
+    private int size;
+
+    // counter index + 1 for every slot, 0 marks a free slot
+    private final int[] slots;
+
+    // min-heap of the counters by count and the position of every counter in the heap
+    private final int[] heap;
+    private final int[] heapPos;
+
+    // scratch space to sort the counters
+    private final long[] order;
+
+    /**
+     * @param capacity Number of counters.
+     */
+    public SpaceSavingSketch(int capacity) {
+        this.capacity = capacity;
+        hashes = new int[capacity];
+        lengths = new int[capacity];
+        counts = new int[capacity];
+        words = new byte[capacity][];
+        slots = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+        heap = new int[capacity];
+        heapPos = new int[capacity];
+        order = new long[capacity];
+    }
+
+    /**
+     * @return Number of counters.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public void word(byte[] buf, int off, int len, int hash) {
+        int counter = find(buf, off, len, hash);
+        if (counter >= 0) {
+            counts[counter]++;
+            siftDown(heapPos[counter]);
+            return;
+        }
+
+        if (size < capacity) {
+            counter = size++;
+            counts[counter] = 1;
+            heap[counter] = counter;
+            heapPos[counter] = counter;
+            // a count of one is never larger than the counts above it
+            siftUp(counter);
+        } else {
+            // the counter with the smallest count is taken over by the new word
+            counter = heap[0];
+            removeFromIndex(counter);
+            counts[counter]++;
+            siftDown(0);
+        }
+
+        if (words[counter] == null || words[counter].length < len) {
+            words[counter] = new byte[Math.max(len, 16)];
+        }
+        System.arraycopy(buf, off, words[counter], 0, len);
+        hashes[counter] = hash;
+        lengths[counter] = len;
+        insertIntoIndex(counter);
+    }
+
+    /**
+     * Adds the k words with the highest counts to a table, in descending order of their
+     * counts.
+     *
+     * @param out Table to add the words to.
+     * @param k   Number of words.
+     */
+    public void writeTop(WordCountTable out, int k) {
+        // count in the upper half, the inverted counter index in the lower half, so equal
+        // counts keep the order in which the words were first counted
+        for (int i = 0; i < size; i++) {
+            order[i] = ((long) counts[i] << 32) | (Integer.MAX_VALUE - i);
+        }
+        Arrays.sort(order, 0, size);
+        for (int i = size - 1; i >= Math.max(0, size - k); i--) {
+            int counter = Integer.MAX_VALUE - (int) order[i];
+            out.add(words[counter], 0, lengths[counter], hashes[counter], counts[counter]);
+        }
+    }
+
+    /**
+     * Removes all counters for the next document, the word buffers are kept.
+     */
+    public void reset() {
+        if (size > 0) {
+            Arrays.fill(slots, 0);
+            size = 0;
+        }
+    }
+
+    private int find(byte[] buf, int off, int len, int hash) {
+        int mask = slots.length - 1;
+        int idx = spread(hash) & mask;
+        int entry;
+        while ((entry = slots[idx]) != 0) {
+            entry--;
+            if (hashes[entry] == hash && lengths[entry] == len && sameBytes(words[entry], buf, off, len)) {
+                return entry;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insertIntoIndex(int counter) {
+        int mask = slots.length - 1;
+        int idx = spread(hashes[counter]) & mask;
+        while (slots[idx] != 0) {
+            idx = (idx + 1) & mask;
+        }
+        slots[idx] = counter + 1;
+    }
+
+    /**
+     * Removes a counter from the index and moves the entries after it back, so linear
+     * probing still finds all of them.
+     */
+    private void removeFromIndex(int counter) {
+        int mask = slots.length - 1;
+        int idx = spread(hashes[counter]) & mask;
+        while (slots[idx] != counter + 1) {
+            idx = (idx + 1) & mask;
+        }
+
+        int free = idx;
+        int next = idx;
+        while (true) {
+            next = (next + 1) & mask;
+            if (slots[next] == 0) {
+                break;
+            }
+            int home = spread(hashes[slots[next] - 1]) & mask;
+            // the entry can move to the free slot unless its home lies after the free slot
+            boolean movable = (next > free) ? (home <= free || home > next) : (home <= free && home > next);
+            if (movable) {
+                slots[free] = slots[next];
+                free = next;
+            }
+        }
+        slots[free] = 0;
+    }
+
+    private void siftUp(int pos) {
+        int counter = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[counter]) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            heapPos[heap[pos]] = pos;
+            pos = parent;
+        }
+        heap[pos] = counter;
+        heapPos[counter] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int counter = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[counter] <= counts[heap[child]]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            heapPos[heap[pos]] = pos;
+            pos = child;
+        }
+        heap[pos] = counter;
+        heapPos[counter] = pos;
+    }
+
+    private static boolean sameBytes(byte[] word, byte[] buf, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            if (word[i] != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same mixing as in WordCountTable, the word hash alone clusters in the low bits.
+     */
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,220 @@
+package org.master.eit;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Schedules clients instead of pinning them to a thread. Every client has a queue of
+ * pending documents, and a client with pending documents sits in the deque of exactly
+ * one worker, so its documents are still processed one at a time and in order. New work
+ * goes to the least loaded worker, and a worker that runs out of work steals clients
+ * from the other end of the deques of the others. A few heavy clients can therefore not
+ * keep each other waiting while other workers are idle.
+ */
+public class StealingScheduler implements DocumentScheduler {
+
+    private final Worker[] workers;
+    private final ConcurrentHashMap<Integer, ClientQueue> clients;
+    private final AtomicInteger nextWorker;
+    private final WorkerUtilization utilization;
+    private final AtomicInteger pendingTasks;
+
+    /**
+     * @param threadCount Number of worker threads.
+     */
+    public StealingScheduler(int threadCount) {
+        clients = new ConcurrentHashMap<>();
+        nextWorker = new AtomicInteger();
+        utilization = new WorkerUtilization(threadCount);
+        pendingTasks = new AtomicInteger();
+        workers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    @Override
+    public void execute(int clientId, Runnable task) {
+        ClientQueue client = clients.computeIfAbsent(clientId, id -> new ClientQueue());
+        pendingTasks.incrementAndGet();
+        client.tasks.add(task);
+        // only the first pending document puts the client in a deque, the worker that takes
+        // the client out of the deque processes the following ones as well
+        if (client.scheduled.compareAndSet(false, true)) {
+            leastLoaded().push(client);
+        }
+    }
+
+    @Override
+    public void clientDisconnected(int clientId) {
+        clients.remove(clientId);
+    }
+
+    @Override
+    public WorkerUtilization getUtilization() {
+        return utilization;
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return Number of clients with pending documents in the deque of the worker, every
+     * one of them has at least one task waiting.
+     */
+    @Override
+    public int getQueueDepth(int worker) {
+        return workers[worker].queued.get();
+    }
+
+    @Override
+    public int getPendingTasks() {
+        return pendingTasks.get();
+    }
+
+    /**
+     * Any worker can take over any client, so the workers share one queue of limit tasks
+     * per worker.
+     */
+    @Override
+    public boolean isFull(int clientId, int limit) {
+        return pendingTasks.get() >= (long) limit * workers.length;
+    }
+
+    /**
+     * @return The worker with the fewest queued clients, idle workers first. The search
+     * starts at a different worker every time so ties are spread evenly.
+     */
+    private Worker leastLoaded() {
+        int start = Math.floorMod(nextWorker.getAndIncrement(), workers.length);
+        Worker best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = workers[(start + i) % workers.length];
+            int load = worker.queued.get() + (worker.idle ? 0 : 1);
+            if (load < bestLoad) {
+                best = worker;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Wakes up one idle worker, if there is one, so it can steal.
+     */
+    private void wakeIdleWorker() {
+        for (Worker worker : workers) {
+            if (worker.idle) {
+                LockSupport.unpark(worker.thread);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The pending documents of a client.
+     */
+    private static class ClientQueue {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // true while the client sits in a deque or is being processed by a worker
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+    }
+
+    private class Worker implements Runnable {
+
+        private final int index;
+        private final Thread thread;
+        private final ConcurrentLinkedDeque<ClientQueue> deque;
+        private final AtomicInteger queued;
+        private volatile boolean idle;
+
+        Worker(int index) {
+            this.index = index;
+            this.thread = new Thread(this, "worker-" + index);
+            this.deque = new ConcurrentLinkedDeque<>();
+            this.queued = new AtomicInteger();
+        }
+
+        void push(ClientQueue client) {
+            queued.incrementAndGet();
+            deque.addLast(client);
+            if (idle) {
+                LockSupport.unpark(thread);
+            } else {
+                wakeIdleWorker();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                ClientQueue client = take();
+                if (client == null) {
+                    // check once more after announcing that we are idle, a client pushed in
+                    // the meantime either is found now or unparks us
+                    idle = true;
+                    client = take();
+                    if (client == null) {
+                        LockSupport.park(this);
+                        idle = false;
+                        continue;
+                    }
+                    idle = false;
+                }
+
+                Runnable task = client.tasks.poll();
+                if (task != null) {
+                    pendingTasks.decrementAndGet();
+                    long startTime = System.nanoTime();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                    utilization.record(index, System.nanoTime() - startTime);
+                }
+
+                // a client with more pending documents goes to the back of our own deque,
+                // where it can be stolen if we are busy for too long
+                if (!client.tasks.isEmpty()) {
+                    push(client);
+                } else {
+                    client.scheduled.set(false);
+                    if (!client.tasks.isEmpty() && client.scheduled.compareAndSet(false, true)) {
+                        push(client);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The next client from our own deque, or one stolen from another worker.
+         */
+        private ClientQueue take() {
+            ClientQueue client = deque.pollFirst();
+            if (client != null) {
+                queued.decrementAndGet();
+                return client;
+            }
+            for (int i = 1; i < workers.length; i++) {
+                Worker victim = workers[(index + i) % workers.length];
+                client = victim.deque.pollLast();
+                if (client != null) {
+                    victim.queued.decrementAndGet();
+                    return client;
+                }
+            }
+            return null;
+        }
+    }
+}
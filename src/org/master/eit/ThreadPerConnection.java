@@ -0,0 +1,101 @@
+package org.master.eit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Alternative to the reactors: every connection is served by a thread of its own with
+ * plain blocking reads and writes, and the documents are counted on that thread. On a JVM
+ * with virtual threads (Java 21 or later), every connection gets a virtual thread, which
+ * makes thousands of mostly idle connections cheap. Older JVMs fall back to one platform
+ * thread per connection.
+ */
+public class ThreadPerConnection {
+
+    private final WoCoServer server;
+    private final boolean cMode;
+    private final int bufSize;
+    private final ExecutorService connectionThreads;
+    private final boolean virtual;
+
+    /**
+     * @param server  The server processing the received documents, in single-thread mode.
+     * @param cMode   Whether HTML cleaning is enabled.
+     * @param bufSize Size of the read buffer of every connection in bytes.
+     */
+    public ThreadPerConnection(WoCoServer server, boolean cMode, int bufSize) {
+        this.server = server;
+        this.cMode = cMode;
+        this.bufSize = bufSize;
+
+        ExecutorService executor = null;
+        try {
+            // looked up by reflection so the server still builds and runs on older JVMs
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // no virtual threads before Java 21
+        }
+        this.virtual = executor != null;
+        this.connectionThreads = virtual ? executor : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * @return Whether the connections are served by virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Accepts connections forever and starts a thread for each of them.
+     *
+     * @param serverSocket A bound server socket in blocking mode.
+     * @throws IOException if accepting fails.
+     */
+    public void serve(ServerSocketChannel serverSocket) throws IOException {
+        while (true) {
+            // blocks until a connection arrives
+            SocketChannel client = serverSocket.accept();
+
+            System.out.println("Connection Accepted: " + client.getLocalAddress() + "\n");
+            server.clientConnected();
+
+            connectionThreads.execute(() -> handle(client));
+        }
+    }
+
+    /**
+     * Reads documents from a connection and answers them until the client disconnects.
+     */
+    private void handle(SocketChannel client) {
+        int clientId = client.hashCode();
+        // without a reactor the session writes the responses right away
+        ClientSession session = new ClientSession(client, null);
+        ByteBuffer bb = ByteBuffer.allocate(bufSize);
+
+        try {
+            int readCnt;
+            while ((readCnt = client.read(bb)) >= 0) {
+                if (readCnt > 0) {
+                    // the server is in single-thread mode, so receiveData counts and
+                    // answers the documents right away
+                    server.receiveData(session, bb.array(), readCnt, cMode);
+                }
+                bb.clear();
+            }
+        } catch (IOException e) {
+            // connection reset by the client, or a malformed request
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            server.clientDisconnected(clientId);
+        }
+    }
+}
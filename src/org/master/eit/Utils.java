@@ -1,80 +1,36 @@
 package org.master.eit;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.concurrent.ConcurrentHashMap;
-
 public class Utils {
 
     /**
-     * Evaluates the average over an ArrayList of float values.
+     * Evaluates the average over the durations of a histogram.
      *
-     * @param times ArrayList to compute the average on.
-     * @return Average over the input ArrayList
+     * @param times Histogram to compute the average on.
+     * @return Average over the durations in milliseconds.
      */
-    public static float calculateAverage(ArrayList<Float> times) {
-        float sum = 0.0f;
-        if(!times.isEmpty()) {
-            for (float time : times) {
-                sum += time;
-            }
-            return sum / (float) times.size();
-        }
-        return sum;
+    public static float calculateAverage(LatencyHistogram times) {
+        return times.getMeanMillis();
     }
 
     /**
-     * Evaluates the standard deviation over an ArrayList of float values
+     * Evaluates the standard deviation over the durations of a histogram.
      *
-     * @param times ArrayList to compute the standard deviation on.
-     * @param average Pre-computed average for the computation.
-     * @return Standard deviation over the times ArrayList.
+     * @param times Histogram to compute the standard deviation on.
+     * @return Standard deviation over the durations in milliseconds.
      */
-    public static float calculateStd (ArrayList<Float> times, float average)
-    {
-        // Step 1:
-        float temp = 0;
-
-        for (int i = 0; i < times.size(); i++)
-        {
-            float val = times.get(i);
-
-            // Step 2:
-            float squrDiffToMean = (float) Math.pow(val - average, 2);
-
-            // Step 3:
-            temp += squrDiffToMean;
-        }
-
-        // Step 4:
-        float meanOfDiffs = temp / (float) (times.size());
-
-        // Step 5:
-        return (float) Math.sqrt(meanOfDiffs);
+    public static float calculateStd(LatencyHistogram times) {
+        return times.getStdMillis();
     }
 
-    /**
-     *
-     * @param hashMap
-     * @return
-     */
-    public static ArrayList<Float> mergeClients (ConcurrentHashMap<Integer, ArrayList<Float>> hashMap) {
-        ArrayList<Float> output = new ArrayList<Float>();
-
-        for (int i : hashMap.keySet()) {
-            output.addAll(hashMap.get(i));
-        }
-
-        return output;
-    }
-
-    public static void printPercentiles (ArrayList<Float> times, String statName) {
-        Collections.sort(times);
-
+    public static void printPercentiles (LatencyHistogram times, String statName) {
         System.out.print(statName + " time percentiles [ms]: ");
         System.out.print("\n");
+        if (times.getCount() == 0) {
+            System.out.println();
+            return;
+        }
         for (int p=1; p<=100; p++) {
-            System.out.print(p+","+times.get(times.size()*p/100-1));
+            System.out.print(p+","+times.getPercentileMillis(p));
             if (p!=100) {
                 System.out.print("\n");
             }
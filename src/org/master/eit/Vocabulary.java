@@ -0,0 +1,174 @@
+package org.master.eit;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Server-wide mapping of words to int IDs, for the responses in the
+ * {@link Protocol#FORMAT_IDS} format. IDs are assigned in the order the words are first
+ * seen, starting at 0, and never change, so a client that has learned the ID of a word
+ * can keep using it for the rest of the connection.
+ *
+ * The words are stored like in a {@link WordCountTable}, in an open addressing hash table
+ * over primitive arrays. Lookups do not lock: an entry is complete before its slot is
+ * published, and when the table is full, a larger copy is built and replaces it. Only
+ * threads adding a new word synchronize with each other. The number of words is bounded,
+ * once the vocabulary is full new words do not get an ID.
+ */
+public class Vocabulary {
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final int maxWords;
+    private volatile Table table;
+
+    /**
+     * @param maxWords Maximum number of words.
+     */
+    public Vocabulary(int maxWords) {
+        this.maxWords = maxWords;
+        this.table = new Table(1024, 8 * 1024);
+    }
+
+    /**
+     * Returns the ID of a word, assigning the next free ID to a new word.
+     *
+     * @param buf  Buffer holding the word.
+     * @param off  Offset of the word in buf.
+     * @param len  Length of the word in bytes.
+     * @param hash Hash of the word, see {@link WordSink#word(byte[], int, int, int)}.
+     * @return The ID of the word, -1 if it is new and the vocabulary is full.
+     */
+    public int id(byte[] buf, int off, int len, int hash) {
+        int id = table.find(buf, off, len, hash);
+        return id >= 0 ? id : add(buf, off, len, hash);
+    }
+
+    private synchronized int add(byte[] buf, int off, int len, int hash) {
+        Table t = table;
+        // another thread may have added the word since the lookup
+        int id = t.find(buf, off, len, hash);
+        if (id >= 0 || t.size == maxWords) {
+            return id;
+        }
+        if (!t.fits(len)) {
+            t = t.grow(len);
+            t.insert(buf, off, len, hash);
+            table = t;
+        } else {
+            t.insert(buf, off, len, hash);
+        }
+        return t.size - 1;
+    }
+
+    /**
+     * @return Number of words with an ID.
+     */
+    public int size() {
+        return table.size;
+    }
+
+    /**
+     * @return Number of bytes of all words with an ID.
+     */
+    public long wordBytes() {
+        return table.arenaLen;
+    }
+
+    /**
+     * @return Maximum number of words.
+     */
+    public int getMaxWords() {
+        return maxWords;
+    }
+
+    /**
+     * @return The figures as "Vocabulary: words,bytes,maximum words".
+     */
+    public String report() {
+        Table t = table;
+        return "Vocabulary: " + t.size + "," + t.arenaLen + "," + maxWords;
+    }
+
+    /**
+     * The arrays of a vocabulary up to a given size. Only the thread holding the lock of the
+     * vocabulary writes to it, and it never moves an entry that has been published.
+     */
+    private static class Table {
+        // ID + 1 for every slot, 0 marks a free slot
+        private final int[] slots;
+        private final int[] hashes;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final byte[] arena;
+        private volatile int size;
+        private volatile int arenaLen;
+
+        Table(int capacity, int arenaCapacity) {
+            slots = new int[capacity * 2];
+            hashes = new int[capacity];
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+            arena = new byte[arenaCapacity];
+        }
+
+        /**
+         * @return The ID of the word, -1 if it is not in the table.
+         */
+        int find(byte[] buf, int off, int len, int hash) {
+            int mask = slots.length - 1;
+            int idx = WordCountTable.spread(hash) & mask;
+            int entry;
+            while ((entry = (int) SLOTS.getAcquire(slots, idx)) != 0) {
+                entry--;
+                if (hashes[entry] == hash && lengths[entry] == len
+                        && Arrays.equals(arena, offsets[entry], offsets[entry] + len, buf, off, off + len)) {
+                    return entry;
+                }
+                idx = (idx + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * @return Whether a new word of the given length fits without growing the table.
+         */
+        boolean fits(int len) {
+            return size < hashes.length && arenaLen + len <= arena.length;
+        }
+
+        /**
+         * Adds a word that is not in the table yet. The slot is published last, so a
+         * lookup that finds it also sees the complete entry.
+         */
+        void insert(byte[] buf, int off, int len, int hash) {
+            int entry = size;
+            System.arraycopy(buf, off, arena, arenaLen, len);
+            hashes[entry] = hash;
+            offsets[entry] = arenaLen;
+            lengths[entry] = len;
+            arenaLen += len;
+            size = entry + 1;
+
+            int mask = slots.length - 1;
+            int idx = WordCountTable.spread(hash) & mask;
+            while (slots[idx] != 0) {
+                idx = (idx + 1) & mask;
+            }
+            SLOTS.setRelease(slots, idx, entry + 1);
+        }
+
+        /**
+         * @return A copy of the table with room for at least one more word of the given length.
+         */
+        Table grow(int len) {
+            int capacity = size < hashes.length ? hashes.length : hashes.length * 2;
+            Table larger = new Table(capacity, Math.max(arena.length * 2, arenaLen + len));
+            for (int entry = 0; entry < size; entry++) {
+                larger.insert(arena, offsets[entry], lengths[entry], hashes[entry]);
+            }
+            return larger;
+        }
+    }
+}
@@ -1,16 +1,28 @@
 package org.master.eit;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 
 public class WoCoClient {
@@ -19,7 +31,18 @@ public class WoCoClient {
 	private Socket sHandle;
 	private BufferedReader sInput;
 	private BufferedWriter sOutput;
-	private ArrayList<Float> respTime;
+	private boolean binary;
+	private boolean compress;
+	// the words received with the responses in the ids format, null in the other formats
+	private WordDictionary dictionary;
+	// error of the response being read, null if it has none
+	private String responseError;
+	private long rejected;
+	private DataInputStream bInput;
+	private byte[] frameBuf;
+	private ByteBuffer frame;
+	private LatencyHistogram respTime;
+	private long docCount;
 	private int cntSincePrint;
 	private long timeLastPrint;
 	private long timeCreate;
@@ -34,7 +57,7 @@ public class WoCoClient {
 	 * @return Returns the document which is encoded as a String 
 	 * @throws IOException
 	 */
-	private static String generateDocument(int length, int seed) throws IOException {
+	static String generateDocument(int length, int seed) throws IOException {
 		
         String fileName = "input.html";
         String line;
@@ -62,25 +85,150 @@ public class WoCoClient {
 	}
 	
 	/**
-	 * Instantiates the client.
+	 * Instantiates the client, which receives the responses as text.
 	 * @param serverAddress IP address or hostname of the WoCoServer.
 	 * @param serverPort Port number of the server.
 	 * @throws UnknownHostException
 	 * @throws IOException
 	 */
 	public WoCoClient(String serverAddress, int serverPort, int docSize) throws UnknownHostException, IOException {
+		this(serverAddress, serverPort, docSize, false);
+	}
+	
+	/**
+	 * Instantiates the client.
+	 * @param serverAddress IP address or hostname of the WoCoServer.
+	 * @param serverPort Port number of the server.
+	 * @param binary if true, the binary response format is negotiated with the server. A server
+	 * that does not accept it keeps answering with text.
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 */
+	public WoCoClient(String serverAddress, int serverPort, int docSize, boolean binary) throws UnknownHostException, IOException {
+		this(serverAddress, serverPort, docSize, binary, false);
+	}
+	
+	/**
+	 * Instantiates the client.
+	 * @param serverAddress IP address or hostname of the WoCoServer.
+	 * @param serverPort Port number of the server.
+	 * @param binary if true, the binary response format is negotiated with the server. A server
+	 * that does not accept it keeps answering with text.
+	 * @param compress if true, deflate compression of the requests and responses is negotiated
+	 * with the server, see {@link Protocol}. A server that does not accept it keeps the
+	 * connection uncompressed.
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 */
+	public WoCoClient(String serverAddress, int serverPort, int docSize, boolean binary, boolean compress) throws UnknownHostException, IOException {
+		this(serverAddress, serverPort, docSize, binary ? Protocol.FORMAT_BINARY : Protocol.FORMAT_TEXT, compress);
+	}
+	
+	/**
+	 * Instantiates the client.
+	 * @param serverAddress IP address or hostname of the WoCoServer.
+	 * @param serverPort Port number of the server.
+	 * @param format The response format to negotiate with the server, Protocol.FORMAT_TEXT,
+	 * FORMAT_BINARY or FORMAT_IDS. A server without a vocabulary answers binary instead of
+	 * word IDs, a server that does not accept the hello keeps answering with text.
+	 * @param compress if true, deflate compression of the requests and responses is negotiated
+	 * with the server, see {@link Protocol}. A server that does not accept it keeps the
+	 * connection uncompressed.
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 */
+	public WoCoClient(String serverAddress, int serverPort, int docSize, String format, boolean compress) throws UnknownHostException, IOException {
         this.sHandle = new Socket(serverAddress, serverPort);
-        this.sInput = new BufferedReader(new InputStreamReader(sHandle.getInputStream()));
+        // requests are only flushed when complete, a request larger than the write buffer
+        // must not wait for the ACK of its first part
+        this.sHandle.setTcpNoDelay(true);
         this.sOutput = new BufferedWriter(new OutputStreamWriter(sHandle.getOutputStream()));
+        
+        // the hello is answered before the readers are created, so none of them buffers the answer
+        boolean text = format.equals(Protocol.FORMAT_TEXT);
+        String ack = (!text || compress) ? negotiate(format, compress) : "";
+        boolean ids = !text && ack.indexOf(Protocol.FORMAT + "=" + Protocol.FORMAT_IDS) >= 0;
+        this.binary = ids || (!text && ack.indexOf(Protocol.FORMAT + "=" + Protocol.FORMAT_BINARY) >= 0);
+        this.dictionary = ids ? new WordDictionary() : null;
+        this.compress = compress && ack.indexOf(Protocol.COMPRESS + "=" + Protocol.COMPRESS_DEFLATE) >= 0;
+        
+        InputStream in = sHandle.getInputStream();
+        if (this.compress) {
+        	// both directions are zlib streams, every flush of a request ends with a sync flush
+        	OutputStream out = new DeflaterOutputStream(sHandle.getOutputStream(), new Deflater(DeflateCodec.LEVEL), 64*1024, true);
+        	this.sOutput = new BufferedWriter(new OutputStreamWriter(out));
+        	in = new InflaterInputStream(in, new Inflater(), 64*1024) {
+        		// the default claims data until the end of the stream, so a reader would
+        		// block for the next response while holding a complete one
+        		@Override
+        		public int available() {
+        			return 0;
+        		}
+        	};
+        }
+        if (this.binary) {
+        	this.bInput = new DataInputStream(new BufferedInputStream(in));
+        	this.frameBuf = new byte[4096];
+        	this.frame = ByteBuffer.wrap(frameBuf);
+        } else {
+        	this.sInput = new BufferedReader(new InputStreamReader(in));
+        }
         this.initStats();
         this.dSize = docSize;
 	}
 	
+	/**
+	 * Asks the server for a response format and/or compression.
+	 * @return The answer of the server, empty if it did not accept the hello.
+	 * @throws IOException
+	 */
+	private String negotiate(String format, boolean compress) throws IOException {
+		String field = Protocol.FORMAT + "=" + format;
+		if (compress) {
+			sOutput.write(Protocol.header(Protocol.HELLO, field, Protocol.COMPRESS + "=" + Protocol.COMPRESS_DEFLATE));
+		} else {
+			sOutput.write(Protocol.header(Protocol.HELLO, field));
+		}
+		sOutput.write(WoCoServer.SEPARATOR);
+		sOutput.flush();
+		
+		// read the answer line byte by byte, the responses following it are read by another stream
+		InputStream in = sHandle.getInputStream();
+		StringBuilder ack = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			ack.append((char) c);
+		}
+		return ack.toString().startsWith("ok;") ? ack.toString() : "";
+	}
+	
+	/**
+	 * @return true if the responses are received in the binary format.
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+	
+	/**
+	 * @return true if the responses carry word IDs, in binary frames.
+	 */
+	public boolean usesWordIds() {
+		return dictionary != null;
+	}
+	
+	/**
+	 * @return true if the requests and responses are compressed.
+	 */
+	public boolean isCompressed() {
+		return compress;
+	}
+	
 	/**
 	 * Initializes the data structure that holds statistical information on requests. 
 	 */
 	private void initStats(){
-		respTime = new ArrayList<Float>();
+		respTime = new LatencyHistogram();
+        docCount = 0;
         cntSincePrint = 0;
         timeLastPrint = System.nanoTime();
         timeCreate = timeLastPrint;
@@ -101,14 +249,163 @@ public class WoCoClient {
 	
 		
 		String response;
-		response = sInput.readLine();
+		response = readLine();
+		endResponse(1);
 
-		long endTime = System.nanoTime();
-		respTime.add((float) ((endTime-startTime)/1000000.0));
-		cntSincePrint ++;
+		recordResponse(startTime);
 		return response;
 	}
 	
+	/**
+	 * Reads the next text response line, without the header it may start with, e.g. the
+	 * one of an error response.
+	 * @return The words and counts of the response.
+	 * @throws IOException
+	 */
+	private String readLine() throws IOException {
+		String line = sInput.readLine();
+		if (line == null) {
+			throw new IOException("Connection closed by the server");
+		}
+		if (line.isEmpty() || line.charAt(0) != Protocol.HEADER_START) {
+			return line;
+		}
+		byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+		HashMap<String, String> header = new HashMap<String, String>();
+		int body = Protocol.parseHeader(bytes, 0, bytes.length, header);
+		readHeader(header);
+		return line.substring(body);
+	}
+	
+	/**
+	 * Reads the header a binary response may start with, e.g. the one of an error response.
+	 * @throws IOException
+	 */
+	private void skipBinaryHeader() throws IOException {
+		bInput.mark(1);
+		if (bInput.read() != Protocol.HEADER_START) {
+			bInput.reset();
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append((char) Protocol.HEADER_START);
+		int c;
+		while ((c = bInput.read()) != Protocol.HEADER_END) {
+			if (c < 0) {
+				throw new IOException("Connection closed by the server");
+			}
+			sb.append((char) c);
+		}
+		sb.append((char) Protocol.HEADER_END);
+		byte[] bytes = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+		HashMap<String, String> header = new HashMap<String, String>();
+		Protocol.parseHeader(bytes, 0, bytes.length, header);
+		readHeader(header);
+	}
+	
+	private void readHeader(HashMap<String, String> header) {
+		if (header.containsKey(Protocol.ERROR)) {
+			responseError = header.get(Protocol.ERROR);
+		}
+	}
+	
+	/**
+	 * Completes reading a response. The server answers a request it rejected because it is
+	 * overloaded with a header carrying the error and a result without words for every
+	 * document, which are counted as rejected.
+	 * @param documents Number of documents of the request.
+	 */
+	private void endResponse(int documents) {
+		if (responseError != null) {
+			rejected += documents;
+			responseError = null;
+		}
+	}
+	
+	/**
+	 * @return Number of documents the server rejected because it was overloaded. They are
+	 * answered with no words.
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+	
+	/**
+	 * Sends a document to the server and waits for a response in the binary format.
+	 * @param doc
+	 * @return The payload of the response frame, valid until the next request.
+	 * @throws IOException
+	 */
+	private ByteBuffer sendToServerBinary(String doc) throws IOException {
+		long startTime = System.nanoTime();
+		sOutput.write(doc);
+		sOutput.write(WoCoServer.SEPARATOR);
+		sOutput.flush();
+		
+		ByteBuffer response = readFrame();
+		endResponse(1);
+		recordResponse(startTime);
+		return response;
+	}
+	
+	/**
+	 * Reads the next binary response frame.
+	 * @return The payload of the frame, valid until the next frame is read.
+	 * @throws IOException
+	 */
+	private ByteBuffer readFrame() throws IOException {
+		skipBinaryHeader();
+		int frameLen = bInput.readInt();
+		if (frameLen > frameBuf.length) {
+			frameBuf = new byte[Math.max(frameLen, frameBuf.length*2)];
+			frame = ByteBuffer.wrap(frameBuf);
+		}
+		bInput.readFully(frameBuf, 0, frameLen);
+		frame.clear();
+		frame.limit(frameLen);
+		return frame;
+	}
+	
+	/**
+	 * Decodes the payload of a binary response frame, with or without word IDs.
+	 * @param frame
+	 * @param consumer Receives the words and their counts.
+	 * @return Number of words in the response.
+	 */
+	private int decode(ByteBuffer frame, Protocol.WordCountConsumer consumer) {
+		if (dictionary != null) {
+			return Protocol.decodeWordIds(frame, dictionary, consumer);
+		}
+		return Protocol.decodeBinary(frame, consumer);
+	}
+	
+	/**
+	 * Reads the words a response frame adds to the dictionary, which the following
+	 * responses may refer to, without decoding its word counts.
+	 * @param frame
+	 */
+	private void learnWords(ByteBuffer frame) {
+		if (dictionary != null) {
+			Protocol.decodeWordIds(frame, dictionary, null);
+		}
+	}
+	
+	private void recordResponse(long startTime) {
+		recordResponse(startTime, 1);
+	}
+	
+	/**
+	 * Records the response time of a request, which counts for every document it carried.
+	 * @param startTime
+	 * @param documents Number of documents in the request.
+	 */
+	private void recordResponse(long startTime, int documents) {
+		long endTime = System.nanoTime();
+		respTime.record(endTime-startTime);
+		docCount += documents;
+		cntSincePrint += documents;
+	}
+	
 	/**
 	 * Sends a document to the server and returns the map of <word,count> pairs.
 	 * If DEBUG is set to false, it returns null!
@@ -118,6 +415,18 @@ public class WoCoClient {
 	 */
 	public HashMap<String,Integer> getWordCount(String doc) throws IOException {
 		
+		if (binary) {
+			ByteBuffer response = sendToServerBinary(doc);
+			HashMap<String, Integer> wordMap = new HashMap<String,Integer>();
+			if (DEBUG==true) {
+				decode(response, (buf, off, len, count) ->
+					wordMap.put(new String(buf, off, len, StandardCharsets.ISO_8859_1), count));
+			} else {
+				learnWords(response);
+			}
+			return wordMap;
+		}
+		
 		String response = sendToServer(doc);
 
 		// Parsing this text into a data structure takes time, we only do it 
@@ -126,7 +435,7 @@ public class WoCoClient {
 		if (DEBUG==true) {			
 			HashMap<String, Integer> wordMap = new HashMap<String,Integer>();			
 			String[] rParts = response.split(",");
-			for (int i=0; i<rParts.length; i+=2) {
+			for (int i=0; i+1<rParts.length; i+=2) {
 				wordMap.put(rParts[i], new Integer(rParts[i+1]));
 			}
 			return wordMap;
@@ -135,6 +444,211 @@ public class WoCoClient {
 		}				
 	}
 	
+	/**
+	 * Sends a document to the server and returns only its k most frequent words, which keeps
+	 * the response small for documents with many distinct words.
+	 * @param doc
+	 * @param k Number of words.
+	 * @param approx Whether the server may count the words with a sketch, which is faster and
+	 * uses less memory for very large documents, but the counts may be too high.
+	 * @return The words and their counts, in descending order of their counts.
+	 * @throws IOException
+	 */
+	public LinkedHashMap<String,Integer> getTopWords(String doc, int k, boolean approx) throws IOException {
+		long startTime = System.nanoTime();
+		sOutput.write(topHeader(k, approx));
+		sOutput.write(doc);
+		sOutput.write(WoCoServer.SEPARATOR);
+		sOutput.flush();
+		
+		LinkedHashMap<String, Integer> wordMap = readWordMap();
+		endResponse(1);
+		recordResponse(startTime);
+		return wordMap;
+	}
+	
+	/**
+	 * Sends several documents in one request and returns the map of <word,count> pairs of
+	 * every document. The documents share one round trip, i.e. one write, one flush and one
+	 * response time sample, which pays off for many small documents.
+	 * @param docs Documents, none of them may contain Protocol.DOCUMENT_SEPARATOR.
+	 * @return The word counts of every document, in the order of the documents.
+	 * @throws IOException
+	 * @throws IllegalArgumentException if docs is empty.
+	 */
+	public ArrayList<LinkedHashMap<String,Integer>> getWordCounts(List<String> docs) throws IOException {
+		return sendBatch(Protocol.header(Protocol.BATCH), docs);
+	}
+	
+	/**
+	 * Sends several documents in one request and returns the k most frequent words of every
+	 * document, see {@link #getTopWords(String, int, boolean)}.
+	 * @param docs Documents, none of them may contain Protocol.DOCUMENT_SEPARATOR.
+	 * @param k Number of words per document.
+	 * @param approx Whether the server may count the words with a sketch.
+	 * @return The words and their counts of every document, in the order of the documents.
+	 * @throws IOException
+	 * @throws IllegalArgumentException if docs is empty.
+	 */
+	public ArrayList<LinkedHashMap<String,Integer>> getTopWords(List<String> docs, int k, boolean approx) throws IOException {
+		return sendBatch(batchHeader(k, approx), docs);
+	}
+	
+	private ArrayList<LinkedHashMap<String,Integer>> sendBatch(String header, List<String> docs) throws IOException {
+		// the server would count the separator alone as an empty document and answer it
+		if (docs.isEmpty()) {
+			throw new IllegalArgumentException("A batch needs at least one document");
+		}
+		long startTime = System.nanoTime();
+		sOutput.write(header);
+		for (int i=0; i<docs.size(); i++) {
+			if (i > 0) {
+				sOutput.write(Protocol.DOCUMENT_SEPARATOR);
+			}
+			sOutput.write(docs.get(i));
+		}
+		sOutput.write(WoCoServer.SEPARATOR);
+		sOutput.flush();
+		
+		ArrayList<LinkedHashMap<String,Integer>> results = new ArrayList<LinkedHashMap<String,Integer>>(docs.size());
+		for (int i=0; i<docs.size(); i++) {
+			results.add(readWordMap());
+		}
+		endResponse(docs.size());
+		recordResponse(startTime, docs.size());
+		return results;
+	}
+	
+	/**
+	 * @param k Number of words per document, 0 for all words.
+	 * @param approx Whether the words may be counted approximately.
+	 * @return The request header of a batch.
+	 */
+	private static String batchHeader(int k, boolean approx) {
+		if (k <= 0) {
+			return Protocol.header(Protocol.BATCH);
+		} else if (approx) {
+			return Protocol.header(Protocol.BATCH, Protocol.TOP + "=" + k, Protocol.APPROX);
+		}
+		return Protocol.header(Protocol.BATCH, Protocol.TOP + "=" + k);
+	}
+	
+	/**
+	 * @param k Number of words.
+	 * @param approx Whether the words may be counted approximately.
+	 * @return The request header that limits the response to a document to its k most frequent words.
+	 */
+	private static String topHeader(int k, boolean approx) {
+		if (approx) {
+			return Protocol.header(Protocol.TOP + "=" + k, Protocol.APPROX);
+		}
+		return Protocol.header(Protocol.TOP + "=" + k);
+	}
+	
+	/**
+	 * Asks the server for the most frequent words over all documents it has answered.
+	 * Requires a server with the aggregate enabled, otherwise the result is empty.
+	 * @param n Number of words, the server answers a number that is not positive with no words.
+	 * @return The words and their counts, in descending order of their counts.
+	 * @throws IOException
+	 */
+	public LinkedHashMap<String,Integer> queryTop(int n) throws IOException {
+		return query(Protocol.QUERY, Protocol.TOP + "=" + n);
+	}
+	
+	/**
+	 * Asks the server for the counts of some words over all documents it has answered.
+	 * Requires a server with the aggregate enabled, otherwise the result is empty.
+	 * @param words Words in lower case.
+	 * @return The words and their counts, 0 for words the server has not seen.
+	 * @throws IOException
+	 */
+	public LinkedHashMap<String,Integer> queryWords(String... words) throws IOException {
+		return query(Protocol.QUERY, Protocol.WORDS + "=" + String.join(",", words));
+	}
+	
+	private LinkedHashMap<String,Integer> query(String... fields) throws IOException {
+		sOutput.write(Protocol.header(fields));
+		sOutput.write(WoCoServer.SEPARATOR);
+		sOutput.flush();
+		LinkedHashMap<String,Integer> wordMap = readWordMap();
+		// an invalid query is no rejected document
+		responseError = null;
+		return wordMap;
+	}
+	
+	/**
+	 * Reads the next response and keeps the order of its words.
+	 */
+	private LinkedHashMap<String,Integer> readWordMap() throws IOException {
+		LinkedHashMap<String, Integer> wordMap = new LinkedHashMap<String,Integer>();
+		if (binary) {
+			decode(readFrame(), (buf, off, len, count) ->
+				wordMap.put(new String(buf, off, len, StandardCharsets.ISO_8859_1), count));
+		} else {
+			String[] rParts = readLine().split(",");
+			for (int i=0; i+1<rParts.length; i+=2) {
+				wordMap.put(rParts[i], Integer.parseInt(rParts[i+1]));
+			}
+		}
+		return wordMap;
+	}
+	
+	/**
+	 * Sends a document count times, keeping up to depth requests in flight instead of waiting
+	 * for every response before sending the next document. The server answers in the order of
+	 * the requests, so the response time of every request is measured from its own send time.
+	 * The responses are not parsed.
+	 * @param doc
+	 * @param count Number of requests.
+	 * @param depth Maximum number of requests waiting for their response.
+	 * @throws IOException
+	 */
+	public void getWordCountsPipelined(String doc, int count, int depth) throws IOException {
+		ArrayDeque<Long> startTimes = new ArrayDeque<Long>();
+		int sent = 0;
+		int received = 0;
+		
+		while (received < count) {
+			while (sent < count && sent - received < depth) {
+				startTimes.add(System.nanoTime());
+				sOutput.write(doc);
+				sOutput.write(WoCoServer.SEPARATOR);
+				sent++;
+			}
+			sOutput.flush();
+			
+			if (binary) {
+				learnWords(readFrame());
+			} else {
+				readLine();
+			}
+			endResponse(1);
+			recordResponse(startTimes.poll());
+			received++;
+			
+			if (DEBUG==true && received%25 == 0) {
+				printStats(false, false, -1);
+			}
+		}
+	}
+	
+	/**
+	 * Sends a document to the server and passes every word of the response with its count to
+	 * the consumer, without allocating a map or Strings. Requires the binary format.
+	 * @param doc
+	 * @param consumer Receives the words, whose bytes are only valid during the call.
+	 * @return Number of distinct words in the document.
+	 * @throws IOException
+	 * @throws IllegalStateException if the binary format was not negotiated.
+	 */
+	public int getWordCount(String doc, Protocol.WordCountConsumer consumer) throws IOException {
+		if (!binary) {
+			throw new IllegalStateException("The binary format was not negotiated");
+		}
+		return decode(sendToServerBinary(doc), consumer);
+	}
+	
 	
 	/**
 	 * Prints out statistical information since the last printStats invocation. 
@@ -161,7 +675,7 @@ public class WoCoClient {
 		if (finalPrint) {
 			float totalTime = (float) ((currTime-timeCreate)/1000000000.0);
 			float totalRespAverage = Utils.calculateAverage(respTime);
-			float totalRespStd = Utils.calculateStd(respTime, totalRespAverage);
+			float totalRespStd = Utils.calculateStd(respTime);
 			System.out.println(dSize + ";" + clients + ";" + totalTime + ";" + totalRespAverage + ";" + totalRespStd + ";" + tput);
 		} else {
 			// System.out.println(tput);
@@ -169,24 +683,13 @@ public class WoCoClient {
 		}
 		
 		if (withPercentiles) {
-			//sorting for pctiles
-			Collections.sort(respTime);
-			
 			System.out.println("-----");
 			
 			elapsedSeconds = (float) ((currTime-timeCreate)/1000000000.0);
-			tput = respTime.size()/elapsedSeconds;
+			tput = docCount/elapsedSeconds;
 			System.out.println("Total time [s], Throughput [ops/s]: "+elapsedSeconds + ", "+ tput);
 			
-			System.out.print("Response time percentiles [ms]: ");
-			System.out.print("\n");
-			for (int p=1; p<=100; p++) {
-				System.out.print(p+","+respTime.get(respTime.size()*p/100-1));
-				if (p!=100) {
-					System.out.print("\n");
-				}
-			}
-			System.out.println();
+			Utils.printPercentiles(respTime, "Response");
 		}
 		
 	}
@@ -207,9 +710,43 @@ public class WoCoClient {
 
 	public static void main(String[] args) throws UnknownHostException, IOException, InterruptedException {
 		
+		//options start with "--" and can be anywhere, the rest are the positional parameters
+		String format = Protocol.FORMAT_TEXT;
+		int pipeline = 1;
+		int top = 0;
+		boolean approx = false;
+		double rate = 0;
+		int connections = 1;
+		int batch = 1;
+		boolean compress = false;
+		ArrayList<String> positional = new ArrayList<String>();
+		for (String arg : args) {
+			if (arg.equals("--format=" + Protocol.FORMAT_BINARY) || arg.equals("--format=" + Protocol.FORMAT_IDS)
+					|| arg.equals("--format=" + Protocol.FORMAT_TEXT)) {
+				format = arg.substring("--format=".length());
+			} else if (arg.startsWith("--pipeline=")) {
+				pipeline = Integer.parseInt(arg.substring("--pipeline=".length()));
+			} else if (arg.startsWith("--top=")) {
+				top = Integer.parseInt(arg.substring("--top=".length()));
+			} else if (arg.equals("--approx")) {
+				approx = true;
+			} else if (arg.startsWith("--rate=")) {
+				rate = Double.parseDouble(arg.substring("--rate=".length()));
+			} else if (arg.startsWith("--connections=")) {
+				connections = Integer.parseInt(arg.substring("--connections=".length()));
+			} else if (arg.startsWith("--batch=")) {
+				batch = Integer.parseInt(arg.substring("--batch=".length()));
+			} else if (arg.equals("--compress")) {
+				compress = true;
+			} else {
+				positional.add(arg);
+			}
+		}
+		args = positional.toArray(new String[0]);
+		
 		//reading in parameters
 		if (args.length<4) {
-			System.out.println("Usage: <servername> <serverport> <documentsize(KiB)> <opcount(x1000)> [<seed>] [<number of clients>]");
+			System.out.println("Usage: <servername> <serverport> <documentsize(KiB)> <opcount(x1000)> [<seed>] [<number of clients>] [--format=text|binary|ids] [--pipeline=<requests in flight>] [--top=<words per response> [--approx]] [--rate=<ops/s> [--connections=<n>]] [--batch=<documents per request>] [--compress]");
 			System.exit(0);
 		}
 		
@@ -231,25 +768,70 @@ public class WoCoClient {
 		//We generate one document for the entire runtime of this client
 		//Otherwise the client would spend too much time generating new inputs.
     	String docu = WoCoClient.generateDocument((int) (dSize), seed);
+		ArrayList<String> batchDocs = new ArrayList<String>();
+		for (int i=0; i<batch; i++) {
+			batchDocs.add(docu);
+		}
+		if (top > 0) {
+			//every request carries the header, the responses are read like full ones
+			docu = topHeader(top, approx) + docu;
+		}
 
-		WoCoClient client = new WoCoClient(sName, sPort, Integer.parseInt(args[2]));
-    	
-    	//send requests to the server in a loop.    	
-		for (int rep=0; rep<ops; rep++) {
-			HashMap<String, Integer> result = client.getWordCount(docu);
+		//with a target rate, one process drives all connections open-loop
+		if (rate > 0) {
+			//the load generator does not keep a dictionary, word IDs fall back to binary
+			LoadGenerator load = new LoadGenerator(sName, sPort, connections, rate, !format.equals(Protocol.FORMAT_TEXT));
+			load.run(docu, ops);
+			load.printStats(Integer.parseInt(args[2]), nrClients);
+			load.shutDown();
+			System.exit(0);
+		}
 
-			// only print stats when in debug mode, otherwise only in the very end one time print
-			if (DEBUG==true) {
-				if (rep%25 == 0) {
-					//reduce the overhead of printing statistics by calling this less often
+		WoCoClient client = new WoCoClient(sName, sPort, Integer.parseInt(args[2]), format, compress);
+		if (!format.equals(Protocol.FORMAT_TEXT) && !client.isBinary()) {
+			System.out.println("The server does not support the binary format, using text");
+		} else if (format.equals(Protocol.FORMAT_IDS) && !client.usesWordIds()) {
+			System.out.println("The server does not support word IDs, using binary");
+		}
+		if (compress && !client.isCompressed()) {
+			System.out.println("The server does not support compression, sending uncompressed");
+		}
+    	
+    	//send requests to the server in a loop.
+		if (batch > 1) {
+			for (int rep=0; rep<ops; rep+=batch) {
+				List<String> docs = batchDocs.subList(0, Math.min(batch, ops-rep));
+				if (top > 0) {
+					client.getTopWords(docs, top, approx);
+				} else {
+					client.getWordCounts(docs);
+				}
+				if (DEBUG==true) {
 					client.printStats(false, false, nrClients);
 				}
 			}
-
+		} else if (pipeline > 1) {
+			client.getWordCountsPipelined(docu, ops, pipeline);
+		} else {
+			for (int rep=0; rep<ops; rep++) {
+				HashMap<String, Integer> result = client.getWordCount(docu);
+	
+				// only print stats when in debug mode, otherwise only in the very end one time print
+				if (DEBUG==true) {
+					if (rep%25 == 0) {
+						//reduce the overhead of printing statistics by calling this less often
+						client.printStats(false, false, nrClients);
+					}
+				}
+	
+			}
 		}
 
 		//final printout without percentiles
 		client.printStats(true, false, nrClients);
+		if (client.getRejected() > 0) {
+			System.out.println("Rejected documents: " + client.getRejected());
+		}
 		Thread.sleep(2000);
 		client.shutDown();
 
@@ -2,32 +2,60 @@ package org.master.eit;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
-import java.nio.channels.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class WoCoServer {
 
     public static final char SEPARATOR = '$';
     private static boolean DEBUG = false;
 
-    private ConcurrentHashMap<Integer, StringBuilder> buffer;
-    private ConcurrentHashMap<Integer, ConcurrentHashMap<String, Integer>> results;
+    // counters of the sketch for an approximate top-k response, per requested word and at least
+    private static final int SKETCH_COUNTERS_PER_WORD = 8;
+    private static final int SKETCH_MIN_COUNTERS = 1024;
+    private static final int SKETCH_MAX_COUNTERS = 1 << 22;
 
-    private ConcurrentHashMap<Integer, ArrayList<Float>> serverRecStats;
-    private ConcurrentHashMap<Integer, ArrayList<Float>> serverCleanStats;
-    private ConcurrentHashMap<Integer, ArrayList<Float>> serverWcStats;
-    private ConcurrentHashMap<Integer, ArrayList<Float>> serverSerStats;
+    private ConcurrentHashMap<Integer, WordCountTable> results;
+
+    // timings over all clients, in fixed memory however long the server runs
+    private LatencyRecorder serverRecStats;
+    private LatencyRecorder serverWcStats;
+    private LatencyRecorder serverSerStats;
 
     private ConcurrentHashMap<Integer, Long> recStatsStart;
 
+    // number of connected clients
+    private int activeConnect;
+
+    // totals since the start of the server, for the admin endpoint
+    private final LongAdder documentsReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    // bytes of the compressed connections, counted by their codecs
+    private final CompressionStats compression = new CompressionStats();
+
     private int threadCount;
-    private HashMap<Integer, Integer> clientThreadMap;
-    private int nextThreadToAllocate;
-    private ArrayList<Executor> threadPool;
+    private DocumentScheduler scheduler;
+
+    // counts large documents on several cores, null if disabled
+    private ParallelWordCounter splitCounter;
+    // counts documents while they are received
+    private boolean streaming;
+    // responses to documents sent before, null if disabled
+    private ResultCache resultCache;
+    // word counts over all documents, null if disabled
+    private GlobalWordCounts aggregate;
+    // IDs of the words sent to clients using word IDs, null if disabled
+    private Vocabulary vocabulary;
+    // bounds the tasks waiting for the workers, null if disabled or in single-thread mode
+    private AdmissionControl admission;
 
     private boolean printClean = false;
 
@@ -37,45 +65,39 @@ public class WoCoServer {
      * only (e.g., "alpha-beta" become "alphabeta"). The code breaks the text up into
      * words based on spaces.
      *
-     * @param line The document encoded as a string.
-     * @param wc   A HashMap to store the results in.
+     * @param line  The document encoded as a string.
+     * @param wc    A table to store the results in.
+     * @param cMode Whether the document has already been cleaned by {@link #cleanDocument(String)}.
      */
-    public static void doWordCount(String line, ConcurrentHashMap<String, Integer> wc, boolean cMode) {
-
-        String lineWC = line;
-
-        if (!cMode) {
-            // use skeleton code if cleaning is not active
-            StringBuilder asciiLine = new StringBuilder();
-            String ucLine = lineWC.toLowerCase();
-
-            char lastAdded = ' ';
-            for (int i = 0; i < lineWC.length(); i++) {
-                char cc = ucLine.charAt(i);
-                if ((cc >= 'a' && cc <= 'z') || (cc == ' ' && lastAdded != ' ')) {
-                    asciiLine.append(cc);
-                    lastAdded = cc;
-                }
-            }
-
-            lineWC = asciiLine.toString();
-        }
+    public static void doWordCount(String line, WordCountTable wc, boolean cMode) {
 
         if (DEBUG) {
             System.out.println("----new line to count words---");
-            System.out.println(lineWC);
+            System.out.println(line);
             System.out.println("------------------------------");
         }
 
-        String[] words = lineWC.split(" ");
-        for (String s : words) {
+        // a cleaned line only consists of "a-z" and single spaces, which the tokenizer
+        // splits the same way as a line that is not cleaned
+        byte[] doc = line.getBytes(StandardCharsets.ISO_8859_1);
+        doWordCount(doc, 0, doc.length, wc, false);
+    }
 
-            if (wc.containsKey(s)) {
-                wc.put(s, wc.get(s) + 1);
-            } else {
-                wc.put(s, 1);
-            }
-        }
+    /**
+     * Performs the word count on an ASCII encoded document directly on its bytes. Gives the
+     * same result as {@link #doWordCount(String, WordCountTable, boolean)} on the decoded
+     * document, but neither copies the document nor creates a String per word. If cleaning
+     * is active, the HTML tags are skipped in the same pass, which gives the same result as
+     * counting the output of {@link #cleanDocument(String)}.
+     *
+     * @param doc   Buffer holding the document.
+     * @param off   Offset of the document in doc.
+     * @param len   Length of the document in bytes.
+     * @param wc    A table to store the results in.
+     * @param cMode Whether the document should be cleaned from HTML tags.
+     */
+    public static void doWordCount(byte[] doc, int off, int len, WordCountTable wc, boolean cMode) {
+        new WordTokenizer(wc).tokenize(doc, off, len, cMode);
     }
 
     /**
@@ -93,12 +115,13 @@ public class WoCoServer {
         }
 
         StringBuilder asciiLine = new StringBuilder();
-        Stack<Character> htmlStack = new Stack<>();
+        // only '<' is ever pushed on the tag stack, so its size is all we need to know
+        int tagDepth = 0;
 
         String ucLine = line.toLowerCase();
 
         boolean docBeginning = true;
-        String beginning = "";
+        StringBuilder beginning = new StringBuilder();
 
         char lastAdded = ' ';
         for (int i = 0; i < ucLine.length(); i++) {
@@ -110,18 +133,18 @@ public class WoCoServer {
                     asciiLine.append(beginning);
                     docBeginning = false;
                 }
-                htmlStack.push(cc);
+                tagDepth++;
             } else if (cc == '>') {
                 docBeginning = false;
-                if (!htmlStack.empty() && htmlStack.peek() == '<') {
-                    htmlStack.pop();
+                if (tagDepth > 0) {
+                    tagDepth--;
                 }
             } else if ((cc >= 'a' && cc <= 'z') || (cc == ' ' && lastAdded != ' ')) {
 
                 if (docBeginning) {
-                    beginning += cc;
+                    beginning.append(cc);
                     lastAdded = cc;
-                } else if (htmlStack.empty()) {
+                } else if (tagDepth == 0) {
                     asciiLine.append(cc);
                     lastAdded = cc;
                 }
@@ -129,7 +152,7 @@ public class WoCoServer {
         }
 
         if (DEBUG) {
-            System.out.println("Stack:" + htmlStack.toString());
+            System.out.println("Tag depth:" + tagDepth);
         }
 
         if (printClean) {
@@ -141,28 +164,135 @@ public class WoCoServer {
     }
 
     /**
-     * Constructor of the server.
+     * Constructor of the server, schedules documents with work stealing in multithreaded mode.
      */
     public WoCoServer(int thCount) {
-        buffer = new ConcurrentHashMap<Integer, StringBuilder>();
-        results = new ConcurrentHashMap<Integer, ConcurrentHashMap<String, Integer>>();
+        this(thCount, true);
+    }
+
+    /**
+     * Constructor of the server.
+     *
+     * @param thCount      Number of worker threads, 1 or less to process documents on the reactor threads.
+     * @param workStealing Whether idle workers take over clients of busy ones, otherwise
+     *                     every client is pinned to one worker.
+     */
+    public WoCoServer(int thCount, boolean workStealing) {
+        results = new ConcurrentHashMap<Integer, WordCountTable>();
 
-        serverRecStats = new ConcurrentHashMap<Integer, ArrayList<Float>>();
-        serverCleanStats = new ConcurrentHashMap<Integer, ArrayList<Float>>();
-        serverWcStats = new ConcurrentHashMap<Integer, ArrayList<Float>>();
-        serverSerStats = new ConcurrentHashMap<Integer, ArrayList<Float>>();
+        // the reactors and the workers record timings
+        int recorders = 2 * Math.max(thCount, Runtime.getRuntime().availableProcessors());
+        serverRecStats = new LatencyRecorder(recorders);
+        serverWcStats = new LatencyRecorder(recorders);
+        serverSerStats = new LatencyRecorder(recorders);
 
         recStatsStart = new ConcurrentHashMap<>();
 
         // initialize data structures needed for multithreading
         threadCount = thCount;
         if (threadCount > 1) {
-            clientThreadMap = new HashMap<>();
-            nextThreadToAllocate = 0;
-            threadPool = new ArrayList<>();
-            for (int i = 0; i < threadCount; i += 1) {
-                threadPool.add(Executors.newFixedThreadPool(1));
-            }
+            scheduler = workStealing ? new StealingScheduler(threadCount) : new PinnedScheduler(threadCount);
+        }
+    }
+
+    /**
+     * Enables counting the words of large documents on several cores.
+     *
+     * @param threshold   Minimum document size in bytes to count in parallel.
+     * @param parallelism Number of threads to count a document with.
+     */
+    public void enableParallelCount(int threshold, int parallelism) {
+        splitCounter = new ParallelWordCounter(threshold, parallelism);
+    }
+
+    /**
+     * Enables counting the words of documents while they are received instead of once
+     * they are complete, which overlaps the transfer of large documents with their count.
+     */
+    public void enableStreaming() {
+        streaming = true;
+    }
+
+    /**
+     * Enables caching the responses to documents, so documents that are sent again are
+     * answered without counting their words.
+     *
+     * @param capacity Maximum memory of the cache in bytes.
+     */
+    public void enableResultCache(long capacity) {
+        resultCache = new ResultCache(capacity);
+    }
+
+    /**
+     * Enables responses with word IDs for the clients that ask for them, see
+     * {@link Protocol#FORMAT_IDS}. The IDs are kept when the server is reset.
+     *
+     * @param maxWords Maximum number of words with an ID.
+     */
+    public void enableVocabulary(int maxWords) {
+        vocabulary = new Vocabulary(maxWords);
+    }
+
+    /**
+     * Enables the word counts over all documents, which clients can query, see {@link Protocol}.
+     * The counts are kept when the server is reset.
+     */
+    public void enableAggregate() {
+        aggregate = new GlobalWordCounts(2 * Math.max(threadCount, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Bounds the number of tasks waiting for the worker threads, see {@link AdmissionControl}.
+     * Has no effect in single-thread mode, where the reactors count the documents themselves.
+     *
+     * @param limit  Maximum number of tasks waiting per worker.
+     * @param reject Whether documents are rejected when the queue is full, otherwise the
+     *               server stops reading from the connection.
+     */
+    public void enableAdmissionControl(int limit, boolean reject) {
+        if (scheduler != null) {
+            admission = new AdmissionControl(scheduler, limit, reject);
+        }
+    }
+
+    /**
+     * @return Number of threads processing documents, 1 or less means processing on the reactor threads.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * @return Number of connected clients.
+     */
+    public synchronized int getActiveConnections() {
+        return activeConnect;
+    }
+
+    /**
+     * Counts a newly accepted connection.
+     */
+    public synchronized void clientConnected() {
+        activeConnect++;
+    }
+
+    /**
+     * Counts a closed connection. Once all clients are disconnected, the statistics of
+     * the experiment are printed and the server is reset for the next one.
+     *
+     * @param clientId
+     */
+    public synchronized void clientDisconnected(int clientId) {
+        activeConnect--;
+
+        if (scheduler != null) {
+            scheduler.clientDisconnected(clientId);
+        }
+
+        // check if all connected clients are disconnected again
+        if (activeConnect == 0) {
+            printAllStats(false);
+            System.out.println(resetServer());
         }
     }
 
@@ -172,203 +302,933 @@ public class WoCoServer {
      * @return
      */
     public String resetServer() {
-        buffer = new ConcurrentHashMap<Integer, StringBuilder>();
-        results = new ConcurrentHashMap<Integer, ConcurrentHashMap<String, Integer>>();
+        results = new ConcurrentHashMap<Integer, WordCountTable>();
 
-        serverRecStats = new ConcurrentHashMap<Integer, ArrayList<Float>>();
-        serverCleanStats = new ConcurrentHashMap<Integer, ArrayList<Float>>();
-        serverWcStats = new ConcurrentHashMap<Integer, ArrayList<Float>>();
-        serverSerStats = new ConcurrentHashMap<Integer, ArrayList<Float>>();
+        serverRecStats.reset();
+        serverWcStats.reset();
+        serverSerStats.reset();
 
         recStatsStart = new ConcurrentHashMap<>();
-        if (threadCount > 1) {
-            clientThreadMap = new HashMap<>();
-            nextThreadToAllocate = 0;
+        if (scheduler != null) {
+            scheduler.getUtilization().reset();
+        }
+        if (resultCache != null) {
+            resultCache.resetCounters();
+        }
+        if (admission != null) {
+            admission.resetCounters();
         }
+        compression.resetCounters();
 
         return "Server reset";
     }
 
     /**
      * This function handles data received from a specific client (TCP connection).
-     * Internally it will check if the buffer associated with the client has a full
-     * document in it (based on the SEPARATOR). If yes, it will process the document and
-     * return true, otherwise it will add the data to the buffer and return false
+     * Internally it will check if the input buffer of the client session has full
+     * documents in it (based on the SEPARATOR). Clients can pipeline, i.e. send further
+     * documents without waiting for the responses, so a chunk can complete any number of
+     * documents. All of them are processed and the responses are written to the client in
+     * the order of the documents; a partial document at the end stays in the buffer.
+     * With admission control, the server stops reading from the connection afterwards if
+     * the queue its documents go to is full. The data of a compressed connection is
+     * decompressed piece by piece, and every piece is processed like received data, so in
+     * streaming mode the count starts with the first decompressed piece.
      *
-     * @param clientId
-     * @param dataChunk
-     * @return A document has been processed or not.
+     * @param session   The connection the data was received from.
+     * @param dataChunk Buffer holding the received bytes.
+     * @param chunkLen  Number of received bytes in dataChunk.
+     * @return Number of documents completed by this chunk.
+     * @throws IOException if the data of a compressed connection cannot be decompressed, or
+     * a {@link ProtocolException} if a request header is not terminated. The connection
+     * cannot be framed any further in both cases and has to be closed.
      */
-    public boolean receiveData(int clientId, SocketChannel client, String dataChunk, boolean cMode) {
+    public int receiveData(ClientSession session, byte[] dataChunk, int chunkLen, boolean cMode) throws IOException {
+        int clientId = session.getClientId();
+        bytesReceived.add(chunkLen);
+
+        // read once, a piece completing the last document removes the entry before the next
+        // piece of the same chunk is processed
+        long recStart = recStatsStart.computeIfAbsent(clientId, id -> System.nanoTime());
+
+        int docCount = 0;
+        DeflateCodec codec = session.getCodec();
+        try {
+            if (codec == null) {
+                docCount = receive(session, dataChunk, chunkLen, recStart, cMode);
+            } else {
+                codec.setInput(dataChunk, 0, chunkLen);
+                int len;
+                while ((len = codec.inflate()) > 0) {
+                    docCount += receive(session, codec.getInflated(), len, recStart, cMode);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // thrown by Protocol.parseHeader, it must not reach the reactor serving the
+            // other connections
+            ProtocolException malformed = new ProtocolException("Malformed request from client " + clientId);
+            malformed.initCause(e);
+            throw malformed;
+        }
 
-        if (!serverRecStats.containsKey(clientId)) {
-            serverRecStats.put(clientId, new ArrayList<>());
+        if (admission != null) {
+            admission.afterReceive(session);
         }
+        return docCount;
+    }
 
-        StringBuilder sb;
+    /**
+     * Processes received data, after decompression if the connection is compressed.
+     *
+     * @param recStart Time the first byte of the pending document was received.
+     * @return Number of documents completed by the data.
+     */
+    private int receive(ClientSession session, byte[] data, int len, long recStart, boolean cMode) {
+        if (streaming) {
+            return receiveStreaming(session, data, len, recStart, cMode);
+        }
+        return receiveDocuments(session, data, len, recStart, cMode);
+    }
 
-        if (!results.containsKey(clientId)) {
-            results.put(clientId, new ConcurrentHashMap<String, Integer>());
+    /**
+     * Collects the received data in the input of the session and handles the documents it
+     * completes.
+     *
+     * @return Number of documents completed by this chunk.
+     */
+    private int receiveDocuments(ClientSession session, byte[] dataChunk, int chunkLen, long recStart, boolean cMode) {
+        int clientId = session.getClientId();
+        ByteBuilder sb = session.getInput();
+
+        // only the new data can contain the separator
+        int scanFrom = sb.length();
+        sb.append(dataChunk, 0, chunkLen);
+        int indexNL = sb.indexOf((byte) WoCoServer.SEPARATOR, scanFrom);
+
+        if (indexNL < 0) {
+            // an earlier piece of the chunk may have completed the previous document
+            recStatsStart.putIfAbsent(clientId, recStart);
+            return 0;
         }
 
-        if (!buffer.containsKey(clientId)) {
+        //we have at least one line
+        long recEnd = System.nanoTime();
+
+        // in multi-thread mode the workers read the documents straight from the input array,
+        // the array is recycled once the last of them and this thread are done with it
+        final byte[] data = sb.array();
+        final AtomicInteger readers = new AtomicInteger(1);
+        int dataLen = sb.length();
+        int lineStart = 0;
+        int docCount = 0;
+
+        while (indexNL > -1) {
+            int documents = handleRequest(session, data, lineStart, indexNL, readers, recEnd - recStart, cMode);
+            docCount += documents;
+            documentsReceived.add(documents);
+
+            // the following documents of the chunk were received together with this one
+            recStart = recEnd;
+            lineStart = indexNL + 1;
+            indexNL = sb.indexOf((byte) WoCoServer.SEPARATOR, lineStart);
+        }
 
-            sb = new StringBuilder();
-            buffer.put(clientId, sb);
+        if (dataLen > lineStart) {
+            recStatsStart.put(clientId, recEnd);
         } else {
-            sb = buffer.get(clientId);
+            recStatsStart.remove(clientId);
         }
 
-        sb.append(dataChunk);
+        // the partial document at the end, if any, moves to the front of the input
+        if (readers.get() > 1) {
+            session.handOverInput(lineStart);
+            if (readers.decrementAndGet() == 0) {
+                session.recycleInput(data);
+            }
+        } else {
+            sb.compact(lineStart);
+        }
 
-        if (dataChunk.indexOf(WoCoServer.SEPARATOR) > -1) {
-            //we have at least one line
-            long recEnd = System.nanoTime();
+        return docCount;
+    }
 
-            serverRecStats.get(clientId).add((float) ((recEnd - recStatsStart.get(clientId)) / 1000000.0));
+    /**
+     * Handles one request of a client: either a hello that negotiates the options of the
+     * connection, or a document or a batch of documents, optionally preceded by a header.
+     * The documents are counted and their response written to the client, in multi-thread
+     * mode by the worker the client is scheduled on.
+     *
+     * @param session  The connection the request was received from.
+     * @param line     Buffer holding the request.
+     * @param lineOff  Offset of the request in line.
+     * @param lineEnd  Offset of the separator terminating the request.
+     * @param readers  Number of threads reading line, incremented while a worker reads it.
+     * @param recNanos Time it took to receive the request.
+     * @param cMode    Whether HTML cleaning is enabled.
+     * @return Number of documents in the request, 0 for a command.
+     */
+    private int handleRequest(ClientSession session, byte[] line, int lineOff, int lineEnd,
+                                  AtomicInteger readers, long recNanos, boolean cMode) {
+        int clientId = session.getClientId();
+        // a request with a header is either a command or carries options for its document
+        int docStart = lineOff;
+        RequestOptions requestOptions = RequestOptions.NONE;
+        if (Protocol.hasHeader(line, lineOff, lineEnd - lineOff)) {
+            HashMap<String, String> header = new HashMap<>();
+            docStart = Protocol.parseHeader(line, lineOff, lineEnd - lineOff, header);
+            if (Protocol.isCommand(header)) {
+                runForClient(session, () -> runCommand(session, header));
+                return 0;
+            }
+            requestOptions = RequestOptions.parse(header);
+        }
+        final int docOff = docStart;
+        final int docLen = lineEnd - docStart;
+        final RequestOptions options = requestOptions;
 
-            String bufData = sb.toString();
+        serverRecStats.record(recNanos);
 
-            int indexNL = bufData.indexOf(WoCoServer.SEPARATOR);
+        if (options.isBatch()) {
+            return handleBatch(session, line, docOff, docLen, readers, cMode, options);
+        }
+        if (admission != null && !admission.admit(session, 1)) {
+            rejectRequest(session, options, 1);
+            return 1;
+        }
 
-            final String line = bufData.substring(0, indexNL);
+        // word count in line
+        WordCountTable wc = countsFor(clientId);
 
-            String rest = (bufData.length() > indexNL + 1) ? bufData.substring(indexNL + 1) : null;
+        // check if multithreaded mode, the scheduler runs the documents of a client one at a
+        // time and in order, so the responses are written in order as well
+        if (threadCount > 1) {
+            readers.incrementAndGet();
+            schedule(session, new Runnable() {
+                @Override
+                public void run() {
+                    respond(session, line, docOff, docLen, readers, wc, cMode, options);
+                }
+            });
+        } else {
+            respond(session, line, docOff, docLen, null, wc, cMode, options);
+        }
 
-            if (indexNL == 0) {
-                System.out.println("SEP@" + indexNL + " bufdata:\n" + bufData);
-            }
+        return 1;
+    }
 
-            if (rest != null) {
-                System.out.println("more than one line: \n" + rest);
-                try {
-                    System.in.read();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                System.out.println("this actually never happens");
-                buffer.put(clientId, new StringBuilder(rest));
-            } else {
-                recStatsStart.remove(clientId);
-                buffer.put(clientId, new StringBuilder());
+    /**
+     * Handles a batch of documents. The whole batch is counted by one task, so its documents
+     * are processed back to back on one worker and answered with one response.
+     *
+     * @param session  The connection the batch was received from.
+     * @param batch    Buffer holding the documents of the batch.
+     * @param off      Offset of the first document in batch.
+     * @param len      Length of the documents and their separators in bytes.
+     * @param readers  Number of threads reading batch, incremented while a worker reads it.
+     * @param cMode    Whether HTML cleaning is enabled.
+     * @param options  Options of the request, applying to every document.
+     * @return Number of documents in the batch.
+     */
+    private int handleBatch(ClientSession session, byte[] batch, int off, int len, AtomicInteger readers,
+                            boolean cMode, RequestOptions options) {
+        int documents = 1;
+        for (int i = off; i < off + len; i++) {
+            if (batch[i] == Protocol.DOCUMENT_SEPARATOR) {
+                documents++;
             }
+        }
 
+        if (admission != null && !admission.admit(session, documents)) {
+            rejectRequest(session, options, documents);
+        } else if (threadCount > 1) {
+            WordCountTable wc = countsFor(session.getClientId());
+            readers.incrementAndGet();
+            schedule(session, () -> respondBatch(session, batch, off, len, readers, wc, cMode, options));
+        } else {
+            respondBatch(session, batch, off, len, null, countsFor(session.getClientId()), cMode, options);
+        }
+        return documents;
+    }
 
-            // word count in line
-            ConcurrentHashMap<String, Integer> wc = results.get(clientId);
-
-            if (!serverCleanStats.containsKey(clientId)) {
-                serverCleanStats.put(clientId, new ArrayList<>());
+    /**
+     * Counts the documents of a batch one after the other and sends their results as one
+     * response. The timings are recorded once per batch, summed over its documents, so like
+     * the round trip, the bookkeeping is shared by all documents of the batch. Batches are
+     * not cached.
+     *
+     * @param session
+     * @param batch   Buffer holding the documents of the batch.
+     * @param off     Offset of the first document in batch.
+     * @param len     Length of the documents and their separators in bytes.
+     * @param readers Number of threads reading batch, decremented once it is read, null in
+     *                single-thread mode.
+     * @param wc      The table of the client, taken when the batch was received.
+     * @param cMode   Whether HTML cleaning is enabled.
+     * @param options Options of the request.
+     */
+    private void respondBatch(ClientSession session, byte[] batch, int off, int len, AtomicInteger readers,
+                              WordCountTable wc, boolean cMode, RequestOptions options) {
+        SpaceSavingSketch sketch = options.isApproximate() ? session.getSketch(sketchCapacity(options.getTop())) : null;
+        byte[] idHeader = Protocol.idHeader(options.getId());
+        ByteBuilder out = new ByteBuilder(idHeader.length + len + 16);
+        out.append(idHeader, 0, idHeader.length);
+
+        long wcNanos = 0;
+        long serNanos = 0;
+        int end = off + len;
+        int docStart = off;
+        while (docStart <= end) {
+            int docEnd = indexOf(batch, docStart, end, Protocol.DOCUMENT_SEPARATOR);
+            if (docEnd < 0) {
+                docEnd = end;
             }
-            if (!serverWcStats.containsKey(clientId)) {
-                serverWcStats.put(clientId, new ArrayList<>());
+
+            long startTime = System.nanoTime();
+            countDocument(batch, docStart, docEnd - docStart, wc, sketch, cMode);
+            long countTime = System.nanoTime();
+            WordCountTable result = resultTable(session, options, wc);
+            appendResult(session, result, out);
+            wcNanos += countTime - startTime;
+            serNanos += System.nanoTime() - countTime;
+
+            if (aggregate != null) {
+                aggregate.add(wc);
             }
+            wc.reset();
+            docStart = docEnd + 1;
+        }
+        if (readers != null && readers.decrementAndGet() == 0) {
+            session.recycleInput(batch);
+        }
 
-            // check if multithreaded mode
-            if (threadCount > 1) {
-                if (!clientThreadMap.containsKey(clientId)) {
-                    clientThreadMap.put(clientId, nextThreadToAllocate);
-                    if (nextThreadToAllocate + 1 >= threadCount) {
-                        nextThreadToAllocate = 0;
-                    } else if (nextThreadToAllocate + 1 < threadCount) {
-                        nextThreadToAllocate += 1;
+        serverWcStats.record(wcNanos);
+        serverSerStats.record(serNanos);
+        send(session, ByteBuffer.wrap(out.array(), 0, out.length()));
+    }
+
+    /**
+     * Answers a complete document: with the cached response if the result cache holds one,
+     * which skips all processing, otherwise by counting its words. A cached top-k response
+     * lacks the counts of the other words, so with the aggregate enabled, top-k requests are
+     * always counted.
+     *
+     * @param session
+     * @param doc       Buffer holding the document.
+     * @param docOff    Offset of the document in doc.
+     * @param docLen    Length of the document in bytes.
+     * @param readers   Number of threads reading doc, decremented once it is read, null in
+     *                  single-thread mode.
+     * @param wc        A table to store the results in.
+     * @param cMode     Whether HTML cleaning is enabled.
+     * @param options   Options of the request.
+     */
+    private void respond(ClientSession session, byte[] doc, int docOff, int docLen, AtomicInteger readers,
+                         WordCountTable wc, boolean cMode, RequestOptions options) {
+        ResultCache.Key key = null;
+        byte[] cached = null;
+        // a response with word IDs depends on the words the client has been sent before
+        if (resultCache != null && !session.usesWordIds() && (aggregate == null || options.getTop() == 0)) {
+            key = ResultCache.key(doc, docOff, docLen, cMode, session.isBinary(), options.getTop(), options.isApproximate());
+            cached = resultCache.get(key);
+        }
+
+        if (cached == null) {
+            SpaceSavingSketch sketch = options.isApproximate() ? session.getSketch(sketchCapacity(options.getTop())) : null;
+            processDocument(session.getClientId(), doc, docOff, docLen, wc, sketch, cMode);
+        }
+        if (readers != null && readers.decrementAndGet() == 0) {
+            session.recycleInput(doc);
+        }
+
+        if (cached != null) {
+            sendCached(session, options.getId(), cached);
+        } else {
+            writeResult(session, wc, options, key);
+        }
+    }
+
+    /**
+     * Streaming counterpart of the framing in {@link #receiveData(ClientSession, byte[], int, boolean)}:
+     * every chunk is counted right away, see {@link DocumentStream}. A request header has to
+     * be complete before the document after it is counted, so it is collected in the input
+     * buffer of the session first. In multi-thread mode the chunks are counted in order by
+     * the worker the client is scheduled on, which gets a copy of the chunk as the reactor
+     * reuses its buffer.
+     *
+     * @return Number of documents completed by this chunk.
+     */
+    private int receiveStreaming(ClientSession session, byte[] dataChunk, int chunkLen, long recStart, boolean cMode) {
+        int clientId = session.getClientId();
+        long recEnd = System.nanoTime();
+
+        DocumentStream stream = session.getStream();
+        if (stream == null) {
+            stream = new DocumentStream(countsFor(clientId));
+            session.setStream(stream);
+        }
+        ByteBuilder headerBuf = session.getInput();
+
+        int pos = 0;
+        int docCount = 0;
+        while (pos < chunkLen) {
+            if (!stream.isOpen()) {
+                HashMap<String, String> header = null;
+                if (headerBuf.length() > 0 || dataChunk[pos] == Protocol.HEADER_START) {
+                    int headerEnd = indexOf(dataChunk, pos, chunkLen, Protocol.HEADER_END);
+                    if (headerEnd < 0) {
+                        headerBuf.append(dataChunk, pos, chunkLen - pos);
+                        break;
                     }
+                    headerBuf.append(dataChunk, pos, headerEnd + 1 - pos);
+                    pos = headerEnd + 1;
+
+                    header = new HashMap<>();
+                    Protocol.parseHeader(headerBuf.array(), 0, headerBuf.length(), header);
+                    headerBuf.clear();
                 }
+                openStream(session, header, cMode);
+                continue;
+            }
+
+            int indexNL = indexOf(dataChunk, pos, chunkLen, (byte) SEPARATOR);
+            int end = (indexNL < 0) ? chunkLen : indexNL;
+            if (end > pos && stream.isBatch()) {
+                headerBuf.append(dataChunk, pos, end - pos);
+            } else if (end > pos && !stream.isCommand()) {
+                feedStream(session, dataChunk, pos, end - pos);
+            }
+            if (indexNL < 0) {
+                break;
+            }
 
-                threadPool.get(clientThreadMap.get(clientId)).execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        String threadLine = line;
+            int documents = closeStream(session, recEnd - recStart, cMode);
+            docCount += documents;
+            documentsReceived.add(documents);
+            // the following documents of the chunk were received together with this one
+            recStart = recEnd;
+            pos = indexNL + 1;
+        }
 
-                        long startTime = System.nanoTime();
-                        if (cMode) {
-                            threadLine = cleanDocument(threadLine);
-                        }
-                        long endTime = System.nanoTime();
-                        serverCleanStats.get(clientId).add((float) ((endTime - startTime) / 1000000.0));
+        if (stream.isOpen() || headerBuf.length() > 0) {
+            recStatsStart.put(clientId, recStart);
+        } else {
+            recStatsStart.remove(clientId);
+        }
 
-                        startTime = System.nanoTime();
+        return docCount;
+    }
 
-                        doWordCount(threadLine, wc, cMode);
-                        endTime = System.nanoTime();
+    private void openStream(ClientSession session, HashMap<String, String> header, boolean cMode) {
+        DocumentStream stream = session.getStream();
+        stream.open(header);
+        if (!stream.isCommand() && !stream.isBatch()) {
+            RequestOptions options = RequestOptions.parse(header);
+            runForClient(session, () -> {
+                SpaceSavingSketch sketch = options.isApproximate() ? session.getSketch(sketchCapacity(options.getTop())) : null;
+                stream.start(cMode, sketch);
+            });
+        }
+    }
 
-                        serverWcStats.get(clientId).add((float) ((endTime - startTime) / 1000000.0));
+    private void feedStream(ClientSession session, byte[] chunk, int off, int len) {
+        DocumentStream stream = session.getStream();
+        if (threadCount > 1) {
+            byte[] copy = session.spareInput(len);
+            System.arraycopy(chunk, off, copy, 0, len);
+            schedule(session, () -> {
+                stream.feed(copy, 0, len);
+                session.recycleInput(copy);
+            });
+        } else {
+            stream.feed(chunk, off, len);
+        }
+    }
 
-                        ByteBuffer ba = ByteBuffer.wrap(serializeResultForClient(clientId).getBytes());
-                        try {
-                            client.write(ba);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
+    /**
+     * Completes the streamed request once its separator has been received. The documents of
+     * a batch have been collected in the input of the session and are counted now.
+     *
+     * @return Number of documents in the request, 0 for a command.
+     */
+    private int closeStream(ClientSession session, long recNanos, boolean cMode) {
+        DocumentStream stream = session.getStream();
+        boolean command = stream.isCommand();
+        boolean batch = stream.isBatch();
+        HashMap<String, String> header = stream.close();
+
+        if (command) {
+            runForClient(session, () -> runCommand(session, header));
+            return 0;
+        }
+
+        serverRecStats.record(recNanos);
+
+        RequestOptions options = RequestOptions.parse(header);
+        if (batch) {
+            ByteBuilder input = session.getInput();
+            AtomicInteger readers = new AtomicInteger(1);
+            int documents = handleBatch(session, input.array(), 0, input.length(), readers, cMode, options);
+            if (readers.get() > 1) {
+                byte[] data = session.handOverInput(input.length());
+                if (readers.decrementAndGet() == 0) {
+                    session.recycleInput(data);
+                }
             } else {
-                String localLine = line;
+                input.clear();
+            }
+            return documents;
+        }
+
+        runForClient(session, () -> {
+            long countNanos = stream.finish();
+            serverWcStats.record(countNanos);
+            writeResult(session, stream.getCounts(), options, null);
+        });
+        return 1;
+    }
+
+    /**
+     * Returns the table the documents of a client are counted in. Tasks keep the table they
+     * were scheduled with, as the tables are replaced when the server is reset.
+     *
+     * @param clientId
+     * @return The table, created if the client has none since the last reset.
+     */
+    private WordCountTable countsFor(int clientId) {
+        return results.computeIfAbsent(clientId, id -> new WordCountTable());
+    }
+
+    /**
+     * Runs a task for a client: in multi-thread mode on the worker the client is scheduled
+     * on, after the tasks submitted for the client before, otherwise right away.
+     */
+    private void runForClient(ClientSession session, Runnable task) {
+        if (threadCount > 1) {
+            schedule(session, task);
+        } else {
+            task.run();
+        }
+    }
 
-                long startTime = System.nanoTime();
-                if (cMode) {
-                    localLine = cleanDocument(localLine);
+    /**
+     * Schedules a task for a client on the workers and counts it as pending for the client
+     * until it has finished. A finished task frees a place in the queue, which may resume
+     * connections paused by the admission control.
+     */
+    private void schedule(ClientSession session, Runnable task) {
+        session.taskScheduled();
+        scheduler.execute(session.getClientId(), () -> {
+            try {
+                task.run();
+            } finally {
+                session.taskDone();
+                if (admission != null) {
+                    admission.resumeSessions();
                 }
-                long endTime = System.nanoTime();
-                serverCleanStats.get(clientId).add((float) ((endTime - startTime) / 1000000.0));
+            }
+        });
+    }
 
-                startTime = System.nanoTime();
+    /**
+     * Answers a request the admission control rejected with an error response, without
+     * counting its documents. If tasks of the client are still pending, the response is
+     * sent after theirs, so the responses stay in the order of the requests.
+     *
+     * @param session
+     * @param options   Options of the request.
+     * @param documents Number of documents in the request, each gets an empty result.
+     */
+    private void rejectRequest(ClientSession session, RequestOptions options, int documents) {
+        Runnable sendError = () -> {
+            byte[] header = Protocol.errorHeader(Protocol.ERROR_OVERLOADED, options.getId());
+            WordCountTable empty = new WordCountTable(1);
+            ByteBuilder out = new ByteBuilder(header.length + documents * empty.binarySize());
+            out.append(header, 0, header.length);
+            for (int i = 0; i < documents; i++) {
+                appendResult(session, empty, out);
+            }
+            send(session, ByteBuffer.wrap(out.array(), 0, out.length()));
+        };
+        if (session.hasScheduledTasks()) {
+            schedule(session, sendError);
+        } else {
+            sendError.run();
+        }
+    }
 
-                doWordCount(localLine, wc, cMode);
-                endTime = System.nanoTime();
+    /**
+     * @return Number of counters of the sketch for an approximate response with the given
+     * number of top words.
+     */
+    private static int sketchCapacity(int top) {
+        return (int) Math.min(SKETCH_MAX_COUNTERS, Math.max(SKETCH_MIN_COUNTERS, (long) SKETCH_COUNTERS_PER_WORD * top));
+    }
 
-                serverWcStats.get(clientId).add((float) ((endTime - startTime) / 1000000.0));
+    /**
+     * @return Index of the first occurrence of b in buf[from, to), or -1.
+     */
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
             }
+        }
+        return -1;
+    }
 
-            return true;
+    /**
+     * Serializes the result of the last document of a client and sends it to the client.
+     * The response is only queued, so the calling thread does not wait for the client.
+     *
+     * @param session
+     * @param wc        The table the document was counted in, taken when the document was
+     *                  received, as the tables are replaced when the server is reset.
+     * @param options   Options of the request.
+     * @param cacheKey  Key to cache the response under, or null.
+     */
+    private void writeResult(ClientSession session, WordCountTable wc, RequestOptions options, ResultCache.Key cacheKey) {
+        ByteBuffer response = serializeResultForClient(session, wc, options);
+        if (cacheKey != null) {
+            resultCache.put(cacheKey, response, Protocol.idHeader(options.getId()).length);
+        }
+        send(session, response);
+
+        // the table is reset and kept for the next document of the client, the aggregate
+        // is only updated once the response is on its way. A document counted in a sketch
+        // left the table empty, its approximate counts are not added to the aggregate.
+        if (aggregate != null) {
+            aggregate.add(wc);
+        }
+        wc.reset();
+    }
 
+    /**
+     * Sends a response to the client and counts its bytes, after compression if the
+     * connection is compressed. The response is only queued, a failure to write it is printed.
+     *
+     * @param session
+     * @param response The response, positioned at its first byte.
+     */
+    private void send(ClientSession session, ByteBuffer response) {
+        try {
+            bytesSent.add(session.send(response));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a response from the result cache to the client.
+     *
+     * @param session
+     * @param requestId ID of the request, or null.
+     * @param response  The cached response, without a request header.
+     */
+    private void sendCached(ClientSession session, String requestId, byte[] response) {
+        byte[] idHeader = Protocol.idHeader(requestId);
+        ByteBuffer buf;
+        if (idHeader.length == 0) {
+            // the cached array is only read, so it can be sent to several clients at once
+            buf = ByteBuffer.wrap(response);
         } else {
-            return false;
+            buf = session.responseBuffer(idHeader.length + response.length);
+            buf.put(idHeader);
+            buf.put(response);
+            buf.flip();
         }
+        send(session, buf);
 
+        if (aggregate != null) {
+            aggregate.addResponse(response, session.isBinary());
+        }
     }
 
     /**
-     * Returns a serialized version of the word count associated with the last
-     * processed document for a given client. If not called before processing a new
-     * document, the result is overwritten by the new one.
+     * Runs the word count on a received document and records its timing. The cleaning is
+     * done in the same pass as the word count, so in cleaning mode the word count timing
+     * covers both and no separate cleaning timing is recorded.
      *
      * @param clientId
-     * @return
+     * @param doc      Buffer holding the document.
+     * @param docOff   Offset of the document in doc.
+     * @param docLen   Length of the document in bytes.
+     * @param wc       A table to store the results in.
+     * @param sketch   A sketch to store the results in instead of wc, or null.
+     * @param cMode    Whether HTML cleaning is enabled.
      */
-    public String serializeResultForClient(int clientId) {
-        if (results.containsKey(clientId)) {
+    private void processDocument(int clientId, byte[] doc, int docOff, int docLen, WordCountTable wc,
+                                 SpaceSavingSketch sketch, boolean cMode) {
+        long startTime = System.nanoTime();
+        countDocument(doc, docOff, docLen, wc, sketch, cMode);
+        long endTime = System.nanoTime();
 
-            if (!serverSerStats.containsKey(clientId)) {
-                serverSerStats.put(clientId, new ArrayList<>());
-            }
+        serverWcStats.record(endTime - startTime);
+    }
 
-            long startTime = System.nanoTime();
+    /**
+     * Counts the words of a document, split over several cores if it is large enough. A
+     * document counted in a sketch is never split, the sketches of the parts could not be
+     * merged.
+     *
+     * @param doc    Buffer holding the document.
+     * @param docOff Offset of the document in doc.
+     * @param docLen Length of the document in bytes.
+     * @param wc     A table to store the results in.
+     * @param sketch A sketch to store the results in instead of wc, or null.
+     * @param cMode  Whether the document should be cleaned from HTML tags.
+     */
+    private void countDocument(byte[] doc, int docOff, int docLen, WordCountTable wc,
+                               SpaceSavingSketch sketch, boolean cMode) {
+        if (sketch != null) {
+            sketch.reset();
+            new WordTokenizer(sketch).tokenize(doc, docOff, docLen, cMode);
+        } else if (splitCounter != null && splitCounter.accepts(docLen)) {
+            splitCounter.count(doc, docOff, docLen, wc, cMode);
+        } else {
+            doWordCount(doc, docOff, docLen, wc, cMode);
+        }
+    }
+
+    /**
+     * Runs a command, i.e. a request without a document. Commands are run in order with the
+     * documents of the client, so e.g. the responses to the documents before a hello still
+     * use the previous options.
+     *
+     * @param session
+     * @param header  Fields of the command.
+     */
+    private void runCommand(ClientSession session, HashMap<String, String> header) {
+        if (header.containsKey(Protocol.HELLO)) {
+            negotiate(session, header);
+        } else {
+            answerQuery(session, header);
+        }
+    }
 
-            StringBuilder sb = new StringBuilder();
-            ConcurrentHashMap<String, Integer> hm = results.get(clientId);
-            for (String key : hm.keySet()) {
-                sb.append(key + ",");
-                sb.append(hm.get(key) + ",");
+    /**
+     * Answers a query of the word counts over all documents, see {@link Protocol}. Without
+     * the aggregate the answer contains no words. A number of words that is not positive is
+     * answered with an error and no words.
+     *
+     * @param session
+     * @param header  Fields of the query.
+     */
+    private void answerQuery(ClientSession session, HashMap<String, String> header) {
+        String id = header.get(Protocol.ID);
+        WordCountTable result = new WordCountTable();
+        if (header.containsKey(Protocol.WORDS)) {
+            if (aggregate != null) {
+                result = aggregate.counts(header.get(Protocol.WORDS).split(","));
+            }
+        } else {
+            int n;
+            try {
+                n = Integer.parseInt(header.getOrDefault(Protocol.TOP, "10"));
+            } catch (NumberFormatException e) {
+                n = 0;
             }
-            results.remove(clientId);
-            sb.append("\n");
-            String serString = sb.substring(0);
+            if (n <= 0) {
+                send(session, serialize(session, Protocol.errorHeader(Protocol.ERROR_INVALID, id), result));
+                return;
+            }
+            if (aggregate != null) {
+                result = aggregate.top(n);
+            }
+        }
+
+        send(session, serialize(session, Protocol.idHeader(id), result));
+    }
 
-            long endTime = System.nanoTime();
+    /**
+     * Handles a hello request, which sets the options of the connection: the format of the
+     * responses, either text (default), binary or with word IDs, and whether the connection
+     * is compressed. Word IDs are only accepted if the server has a vocabulary, otherwise
+     * the connection falls back to the binary format.
+     * The accepted options are confirmed with an uncompressed text line. The client only
+     * sends further requests once it has received it, so the data received afterwards is
+     * decompressed if compression was negotiated.
+     *
+     * @param session
+     * @param header  Fields of the hello request.
+     */
+    private void negotiate(ClientSession session, HashMap<String, String> header) {
+        String format = header.get(Protocol.FORMAT);
+        boolean wordIds = Protocol.FORMAT_IDS.equals(format) && vocabulary != null;
+        boolean binary = Protocol.FORMAT_BINARY.equals(format) || Protocol.FORMAT_IDS.equals(format);
+        boolean compress = Protocol.COMPRESS_DEFLATE.equals(header.get(Protocol.COMPRESS));
+        session.setBinary(binary);
+        session.setWordIds(wordIds);
+        session.setCompressResponses(false);
+        session.setCodec(compress ? new DeflateCodec(compression) : null);
+
+        String ack = "ok;" + Protocol.FORMAT + "="
+                + (wordIds ? Protocol.FORMAT_IDS : binary ? Protocol.FORMAT_BINARY : Protocol.FORMAT_TEXT)
+                + (compress ? ";" + Protocol.COMPRESS + "=" + Protocol.COMPRESS_DEFLATE : "") + "\n";
+        send(session, ByteBuffer.wrap(ack.getBytes(StandardCharsets.ISO_8859_1)));
+        session.setCompressResponses(compress);
+    }
 
-            serverSerStats.get(clientId).add((float) ((endTime - startTime) / 1000000.0));
+    /**
+     * Returns a serialized version of the word count of the last processed document of a
+     * client. The table has to be reset before the next document of the client is
+     * processed. The result is serialized in the format the client negotiated, see
+     * {@link Protocol}. If the document had a request ID, the response starts with a header
+     * carrying the same ID. If the request asked for the top k words, only those are
+     * serialized, taken from the sketch for an approximate request.
+     *
+     * @param session
+     * @param wc      The table the document was counted in.
+     * @param options Options of the request.
+     * @return The serialized result, ready to be written to the client.
+     */
+    public ByteBuffer serializeResultForClient(ClientSession session, WordCountTable wc, RequestOptions options) {
+        long startTime = System.nanoTime();
 
-            if (DEBUG) {
-                System.out.println(serverSerStats.size());
-            }
+        ByteBuffer serBuffer = serialize(session, Protocol.idHeader(options.getId()), resultTable(session, options, wc));
+
+        long endTime = System.nanoTime();
+
+        serverSerStats.record(endTime - startTime);
+
+        if (DEBUG) {
+            System.out.println(serverSerStats.snapshot().getCount());
+        }
+
+        return serBuffer;
+    }
+
+    /**
+     * @param session
+     * @param options Options of the request.
+     * @param wc      The counts of the document, unless it was counted in the sketch.
+     * @return The words to serialize for a request: all counts of the document, or only its
+     * top words if the request asked for them.
+     */
+    private static WordCountTable resultTable(ClientSession session, RequestOptions options, WordCountTable wc) {
+        int top = options.getTop();
+        if (top == 0) {
+            return wc;
+        }
+        WordCountTable topWords = new WordCountTable(Math.min(top, 1024));
+        if (options.isApproximate()) {
+            session.getSketch(sketchCapacity(top)).writeTop(topWords, top);
+        } else {
+            topWords.addTop(wc, top);
+        }
+        return topWords;
+    }
 
-            return serString;
+    /**
+     * Appends the word counts of one document of a batch to its response, in the format
+     * the client negotiated.
+     *
+     * @param session
+     * @param wc      The word counts.
+     * @param out     The response.
+     */
+    private void appendResult(ClientSession session, WordCountTable wc, ByteBuilder out) {
+        if (session.usesWordIds()) {
+            int[] ids = session.wordIdBuffer(wc.size());
+            ByteBuffer frame = out.appendBuffer(wc.wordIdsSize(vocabulary, session.getKnownWords(), ids));
+            wc.writeWordIds(frame, session.getKnownWords(), ids);
+        } else if (session.isBinary()) {
+            wc.writeBinary(out.appendBuffer(wc.binarySize()));
+        } else {
+            wc.writeCsv(out);
+        }
+    }
+
+    /**
+     * Serializes word counts in the format the client negotiated.
+     *
+     * @param session
+     * @param header  Header of the response, e.g. {@link Protocol#idHeader(String)}.
+     * @param wc      The word counts.
+     * @return The serialized word counts, ready to be written to the client.
+     */
+    private ByteBuffer serialize(ClientSession session, byte[] header, WordCountTable wc) {
+        if (session.usesWordIds()) {
+            int[] ids = session.wordIdBuffer(wc.size());
+            ByteBuffer serBuffer = session.responseBuffer(header.length + wc.wordIdsSize(vocabulary, session.getKnownWords(), ids));
+            serBuffer.put(header);
+            wc.writeWordIds(serBuffer, session.getKnownWords(), ids);
+            serBuffer.flip();
+            return serBuffer;
+        } else if (session.isBinary()) {
+            ByteBuffer serBuffer = session.responseBuffer(header.length + wc.binarySize());
+            serBuffer.put(header);
+            wc.writeBinary(serBuffer);
+            serBuffer.flip();
+            return serBuffer;
         } else {
-            return "";
+            ByteBuilder sb = new ByteBuilder(header.length + wc.size() * 16 + 1);
+            sb.append(header, 0, header.length);
+            wc.writeCsv(sb);
+            return ByteBuffer.wrap(sb.array(), 0, sb.length());
         }
     }
 
+    /**
+     * Returns the current metrics of the server in the Prometheus text format, see
+     * {@link AdminEndpoint}. The latencies cover the documents since the last reset of the
+     * statistics, the totals the whole runtime of the server.
+     *
+     * @return The metrics.
+     */
+    public String metrics() {
+        PrometheusText text = new PrometheusText();
+
+        // the cleaning is timed together with the word count, see printAllStats
+        text.family("woco_stage_latency_seconds", "summary",
+                "Time spent on a document in every stage, the wordcount stage includes the HTML cleaning.");
+        text.summary("woco_stage_latency_seconds", "stage=\"receive\"", serverRecStats.snapshot());
+        text.summary("woco_stage_latency_seconds", "stage=\"wordcount\"", serverWcStats.snapshot());
+        text.summary("woco_stage_latency_seconds", "stage=\"serialize\"", serverSerStats.snapshot());
+
+        text.family("woco_documents_total", "counter", "Documents received.")
+                .sample("woco_documents_total", null, documentsReceived.sum());
+        text.family("woco_received_bytes_total", "counter", "Bytes received from clients.")
+                .sample("woco_received_bytes_total", null, bytesReceived.sum());
+        text.family("woco_sent_bytes_total", "counter", "Bytes of the responses sent to clients.")
+                .sample("woco_sent_bytes_total", null, bytesSent.sum());
+        text.family("woco_compressed_bytes_total", "counter", "Bytes of compressed connections as transferred.")
+                .sample("woco_compressed_bytes_total", "direction=\"request\"", compression.requests().getCompressedBytes())
+                .sample("woco_compressed_bytes_total", "direction=\"response\"", compression.responses().getCompressedBytes());
+        text.family("woco_uncompressed_bytes_total", "counter", "Bytes of compressed connections before compression.")
+                .sample("woco_uncompressed_bytes_total", "direction=\"request\"", compression.requests().getUncompressedBytes())
+                .sample("woco_uncompressed_bytes_total", "direction=\"response\"", compression.responses().getUncompressedBytes());
+        text.family("woco_compression_seconds_total", "counter", "Time spent compressing responses and decompressing requests.")
+                .sample("woco_compression_seconds_total", "direction=\"request\"", compression.requests().getNanos() / 1e9)
+                .sample("woco_compression_seconds_total", "direction=\"response\"", compression.responses().getNanos() / 1e9);
+        text.family("woco_active_connections", "gauge", "Connected clients.")
+                .sample("woco_active_connections", null, getActiveConnections());
+
+        if (scheduler != null) {
+            text.family("woco_worker_queue_depth", "gauge", "Entries waiting in the queue of a worker.");
+            for (int i = 0; i < scheduler.getWorkerCount(); i++) {
+                text.sample("woco_worker_queue_depth", "worker=\"" + i + "\"", scheduler.getQueueDepth(i));
+            }
+            text.family("woco_pending_tasks", "gauge", "Tasks scheduled on the workers and not started yet.")
+                    .sample("woco_pending_tasks", null, scheduler.getPendingTasks());
+        }
+        if (admission != null) {
+            text.family("woco_paused_connections", "gauge", "Connections not read from because their worker queue is full.")
+                    .sample("woco_paused_connections", null, admission.getPausedConnections());
+            text.family("woco_read_pauses_total", "counter", "Times a connection stopped reading because its worker queue was full.")
+                    .sample("woco_read_pauses_total", null, admission.getPauses());
+            text.family("woco_rejected_documents_total", "counter", "Documents rejected because their worker queue was full.")
+                    .sample("woco_rejected_documents_total", null, admission.getRejections());
+        }
+        if (vocabulary != null) {
+            text.family("woco_vocabulary_words", "gauge", "Words with an ID for the responses with word IDs.")
+                    .sample("woco_vocabulary_words", null, vocabulary.size());
+            text.family("woco_vocabulary_bytes", "gauge", "Bytes of the words with an ID.")
+                    .sample("woco_vocabulary_bytes", null, vocabulary.wordBytes());
+        }
+
+        return text.toString();
+    }
+
     /**
      * Merge all the statistics from all clients per cost of operation collected.
      * Calculate average and standard deviation and print the result as ";"-separated line.
@@ -378,31 +1238,41 @@ public class WoCoServer {
     public void printAllStats(boolean withPercentiles) {
 
         // serverRecStats
-        ArrayList<Float> recAll = Utils.mergeClients(serverRecStats);
+        LatencyHistogram recAll = serverRecStats.snapshot();
         float recAvg = Utils.calculateAverage(recAll);
-        float recStd = Utils.calculateStd(recAll, recAvg);
+        float recStd = Utils.calculateStd(recAll);
 
-        // serverCleanStats
-        ArrayList<Float> cleanAll = Utils.mergeClients(serverCleanStats);
-        float cleanAvg = Utils.calculateAverage(cleanAll);
-        float cleanStd = Utils.calculateStd(cleanAll, cleanAvg);
-
-        // serverWcStats
-        ArrayList<Float> wcAll = Utils.mergeClients(serverWcStats);
+        // serverWcStats, the cleaning is timed together with the word count
+        LatencyHistogram wcAll = serverWcStats.snapshot();
         float wcAvg = Utils.calculateAverage(wcAll);
-        float wcStd = Utils.calculateStd(wcAll, wcAvg);
+        float wcStd = Utils.calculateStd(wcAll);
 
         // serverSerStats
-        ArrayList<Float> serAll = Utils.mergeClients(serverSerStats);
+        LatencyHistogram serAll = serverSerStats.snapshot();
         float serAvg = Utils.calculateAverage(serAll);
-        float serStd = Utils.calculateStd(serAll, serAvg);
+        float serStd = Utils.calculateStd(serAll);
 
         // final print
-        System.out.println(recAvg + ";" + recStd + ";" + cleanAvg + ";" + cleanStd + ";" + wcAvg + ";" + wcStd + ";" + serAvg + ";" + serStd);
+        System.out.println(recAvg + ";" + recStd + ";" + wcAvg + ";" + wcStd + ";" + serAvg + ";" + serStd);
+
+        if (scheduler != null) {
+            System.out.println(scheduler.getUtilization().report());
+        }
+        if (resultCache != null) {
+            System.out.println(resultCache.report());
+        }
+        if (admission != null) {
+            System.out.println(admission.report());
+        }
+        if (compression.isUsed()) {
+            System.out.println(compression.report());
+        }
+        if (vocabulary != null && vocabulary.size() > 0) {
+            System.out.println(vocabulary.report());
+        }
 
         if (withPercentiles) {
             Utils.printPercentiles(recAll, "Receive");
-            Utils.printPercentiles(cleanAll, "Cleaning");
             Utils.printPercentiles(wcAll, "Word count");
             Utils.printPercentiles(serAll, "Serialization");
         }
@@ -412,112 +1282,97 @@ public class WoCoServer {
 
     public static void main(String[] args) throws IOException {
 
-        if (args.length != 4) {
-            System.out.println("Usage: <listenaddress> <listenport> <cleaning> <threadcount>");
+        ServerConfig config = null;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(ServerConfig.USAGE);
             System.exit(0);
         }
 
-        String lAddr = args[0];
-        int lPort = Integer.parseInt(args[1]);
-        boolean cMode = Boolean.parseBoolean(args[2]);
-        int threadCount = Integer.parseInt(args[3]);
-
-        // instantiate the server
-        WoCoServer server = new WoCoServer(threadCount);
-
-        // instantiate connection counter
-        int activeConnect = 0;
-
-        // detects the connections
-        Selector selector = Selector.open();
+        String lAddr = config.getListenAddress();
+        int lPort = config.getListenPort();
+        boolean cMode = config.isCleaning();
+        int threadCount = config.getThreadCount();
+
+        // instantiate the server, with one thread per connection the documents are counted
+        // on the connection threads
+        boolean perConnection = config.isThreadPerConnection();
+        WoCoServer server = new WoCoServer(perConnection ? 1 : threadCount, config.isWorkStealing());
+        if (config.getSplitThreshold() > 0) {
+            server.enableParallelCount(config.getSplitThreshold(), config.getSplitThreads());
+        }
+        if (config.isStreaming()) {
+            server.enableStreaming();
+        }
+        if (config.getCacheSize() > 0) {
+            server.enableResultCache(config.getCacheSize());
+        }
+        if (config.isAggregate()) {
+            server.enableAggregate();
+        }
+        if (config.getVocabularySize() > 0) {
+            server.enableVocabulary(config.getVocabularySize());
+        }
+        if (config.getQueueLimit() > 0) {
+            server.enableAdmissionControl(config.getQueueLimit(), config.isRejectOnOverload());
+        }
+        if (config.getAdminPort() > 0) {
+            AdminEndpoint admin = new AdminEndpoint(server, new InetSocketAddress(lAddr, config.getAdminPort()));
+            new Thread(admin, "admin").start();
+        }
 
-        // instantiate the server socket
+        // instantiate the server socket, accepting is done in blocking mode by this thread
         ServerSocketChannel serverSocket = ServerSocketChannel.open();
         InetSocketAddress myAddr = new InetSocketAddress(lAddr, lPort);
 
         // ip:port to listen on
         serverSocket.bind(myAddr);
 
-        serverSocket.configureBlocking(false);
-
-
-        int ops = serverSocket.validOps();
+        ByteClassifier classifier = WordTokenizer.defaultClassifier();
+        if (cMode && classifier != null) {
+            System.out.println("Cleaning with the vectorized tokenizer (" + classifier.describe() + ").");
+        }
 
-        SelectionKey selectKey = serverSocket.register(selector, ops, null);
+        if (perConnection) {
+            ThreadPerConnection connections = new ThreadPerConnection(server, cMode, 64 * 1024);
+            System.out.println("Server started, one " + (connections.isVirtual() ? "virtual" : "platform")
+                    + " thread per connection.");
+            connections.serve(serverSocket);
+            return;
+        }
 
-        ByteBuffer bb = ByteBuffer.allocate(1024 * 1024);
-        ByteBuffer ba;
+        // start the reactors, every one with its own selector and read buffer
+        Reactor[] reactors = new Reactor[config.getReactorCount()];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(server, cMode, 1024 * 1024);
+            new Thread(reactors[i], "reactor-" + i).start();
+        }
 
         System.out.println("Server started.");
 
+        int nextReactor = 0;
         while (true) {
-            // returns the channels that are ready for the events that we are interested in -> ops
-            // blocks until at least one channel is ready for the events you registered for.
-            // returns int telling us how many channels are ready to, that is since the last time it was called
-            selector.select();
-
-            // access the ready channels
-            // this is the SelectionKey object that we got returned when we registered the channel with the selector
-            Set<SelectionKey> readyKeys = selector.selectedKeys();
-            Iterator<SelectionKey> iterator = readyKeys.iterator();
-
-            // iterate through the keys
-            // This loop iterates the keys in the selected key set.
-            // For each key it tests the key to determine what the channel referenced by the key is ready for.
-            while (iterator.hasNext()) {
-                SelectionKey key = iterator.next();
-
-                if (key.isAcceptable()) {
-                    // blocks until a connection arrives
-                    SocketChannel client = serverSocket.accept();
-
-                    client.configureBlocking(false);
-
-                    client.register(selector, SelectionKey.OP_READ);
-                    System.out.println("Connection Accepted: " + client.getLocalAddress() + "\n");
-                    activeConnect++;
-
-                } else if (key.isReadable()) {
-                    SocketChannel client = (SocketChannel) key.channel();
-                    int clientId = client.hashCode();
-
-                    bb.rewind();
-
-                    int readCnt = client.read(bb);
-
-                    if (readCnt > 0) {
-
-                        if (!server.recStatsStart.containsKey(clientId)) {
-                            server.recStatsStart.put(clientId, System.nanoTime());
-                        }
-
-                        String result = new String(bb.array(), 0, readCnt);
-
-                        // receiveData calls the word count
-                        boolean hasResult = server.receiveData(clientId, client, result, cMode);
-
-                        if (hasResult && threadCount <= 1) {
-                            ba = ByteBuffer.wrap(server.serializeResultForClient(clientId).getBytes());
-                            client.write(ba);
-                        }
-
-                    } else {
-                        key.cancel();
-                        activeConnect--;
-
-                        // check if all connected clients are disconnected again
-                        if (activeConnect == 0) {
-                            server.printAllStats(false);
-                            System.out.println(server.resetServer());
-                        }
-
-                    }
-
+            // blocks until a connection arrives
+            SocketChannel client = serverSocket.accept();
+
+            client.configureBlocking(false);
+            System.out.println("Connection Accepted: " + client.getLocalAddress() + "\n");
+            server.clientConnected();
+
+            // hand the connection to the reactor with the fewest connections, starting the
+            // search at a different reactor every time so ties are spread evenly
+            Reactor target = reactors[nextReactor];
+            for (int i = 1; i < reactors.length; i++) {
+                Reactor candidate = reactors[(nextReactor + i) % reactors.length];
+                if (candidate.getClientCount() < target.getClientCount()) {
+                    target = candidate;
                 }
-                iterator.remove();
             }
+            nextReactor = (nextReactor + 1) % reactors.length;
+            target.addClient(client);
         }
     }
 
 }
-
@@ -0,0 +1,349 @@
+package org.master.eit;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+
+/**
+ * Word count map for a single document. Replaces a HashMap&lt;String, Integer&gt; by an open
+ * addressing hash table over primitive arrays: the bytes of all words are stored one after
+ * the other in a flat arena and the counts are plain ints, so counting a word that has been
+ * seen before does not allocate anything. After a document has been serialized, the table
+ * is reset and reused for the next one.
+ *
+ * The table is meant to be filled by a single thread at a time, it is not synchronized.
+ */
+public class WordCountTable implements WordSink {
+
+    // entry index + 1 for every slot, 0 marks a free slot
+    private int[] slots;
+
+    // entries in insertion order
+    private int[] hashes;
+    private int[] offsets;
+    private int[] lengths;
+    private int[] counts;
+    private int size;
+
+    // the bytes of all words
+    private byte[] arena;
+    private int arenaLen;
+
+    public WordCountTable() {
+        this(256);
+    }
+
+    /**
+     * @param expectedWords Number of distinct words the table can hold before it grows.
+     */
+    public WordCountTable(int expectedWords) {
+        int capacity = Integer.highestOneBit(Math.max(expectedWords, 8) * 2 - 1) * 2;
+        slots = new int[capacity];
+        hashes = new int[capacity / 2];
+        offsets = new int[capacity / 2];
+        lengths = new int[capacity / 2];
+        counts = new int[capacity / 2];
+        arena = new byte[capacity * 4];
+    }
+
+    @Override
+    public void word(byte[] buf, int off, int len, int hash) {
+        add(buf, off, len, hash, 1);
+    }
+
+    /**
+     * Adds to the count of a word, inserting the word if it is not in the table yet.
+     *
+     * @param buf   Buffer holding the word.
+     * @param off   Offset of the word in buf.
+     * @param len   Length of the word in bytes.
+     * @param hash  Hash of the word, see {@link WordSink#word(byte[], int, int, int)}.
+     * @param count Number of occurrences to add.
+     */
+    public void add(byte[] buf, int off, int len, int hash, int count) {
+        int mask = slots.length - 1;
+        int idx = spread(hash) & mask;
+        int entry;
+        while ((entry = slots[idx]) != 0) {
+            entry--;
+            if (hashes[entry] == hash && lengths[entry] == len && sameBytes(offsets[entry], buf, off, len)) {
+                counts[entry] += count;
+                return;
+            }
+            idx = (idx + 1) & mask;
+        }
+
+        if (size == counts.length) {
+            growEntries();
+        }
+        if (arenaLen + len > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arenaLen + len, arena.length * 2));
+        }
+        System.arraycopy(buf, off, arena, arenaLen, len);
+        hashes[size] = hash;
+        offsets[size] = arenaLen;
+        lengths[size] = len;
+        counts[size] = count;
+        arenaLen += len;
+        slots[idx] = ++size;
+
+        // keep the load factor at or below one half
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * Adds the counts of all words of another table to this one.
+     *
+     * @param other Table to merge into this one.
+     */
+    public void addAll(WordCountTable other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.arena, other.offsets[i], other.lengths[i], other.hashes[i], other.counts[i]);
+        }
+    }
+
+    /**
+     * Returns the count of a word.
+     *
+     * @param buf  Buffer holding the word.
+     * @param off  Offset of the word in buf.
+     * @param len  Length of the word in bytes.
+     * @param hash Hash of the word, see {@link WordSink#word(byte[], int, int, int)}.
+     * @return The count of the word, 0 if it is not in the table.
+     */
+    public int get(byte[] buf, int off, int len, int hash) {
+        int mask = slots.length - 1;
+        int idx = spread(hash) & mask;
+        int entry;
+        while ((entry = slots[idx]) != 0) {
+            entry--;
+            if (hashes[entry] == hash && lengths[entry] == len && sameBytes(offsets[entry], buf, off, len)) {
+                return counts[entry];
+            }
+            idx = (idx + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the words with the highest counts of another table to this one, in descending
+     * order of their counts. Words with equal counts keep the order of the other table.
+     *
+     * @param other Table to take the words from.
+     * @param n     Number of words to add.
+     */
+    public void addTop(WordCountTable other, int n) {
+        // min-heap of the best entries so far, the weakest one on top
+        PriorityQueue<Integer> best = new PriorityQueue<>(Math.max(1, Math.min(n, other.size)),
+                (a, b) -> other.counts[a] != other.counts[b] ? Integer.compare(other.counts[a], other.counts[b])
+                        : Integer.compare(b, a));
+        for (int i = 0; i < other.size && n > 0; i++) {
+            if (best.size() < n) {
+                best.add(i);
+            } else if (best.comparator().compare(i, best.peek()) > 0) {
+                best.poll();
+                best.add(i);
+            }
+        }
+
+        int[] top = new int[best.size()];
+        for (int i = top.length - 1; i >= 0; i--) {
+            top[i] = best.poll();
+        }
+        for (int i : top) {
+            add(other.arena, other.offsets[i], other.lengths[i], other.hashes[i], other.counts[i]);
+        }
+    }
+
+    /**
+     * @return Number of distinct words in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all words, but keeps the allocated memory for the next document. The slots
+     * keep the capacity of the largest document, so after a small one only the slots of its
+     * words are cleared.
+     */
+    public void reset() {
+        if (size > 0) {
+            if (size * 8 < slots.length) {
+                // there are no removals, every entry is found on the probe path of its hash
+                int mask = slots.length - 1;
+                for (int i = 0; i < size; i++) {
+                    int idx = spread(hashes[i]) & mask;
+                    while (slots[idx] != i + 1) {
+                        idx = (idx + 1) & mask;
+                    }
+                    slots[idx] = 0;
+                }
+            } else {
+                Arrays.fill(slots, 0);
+            }
+            size = 0;
+            arenaLen = 0;
+        }
+    }
+
+    /**
+     * Writes the table in the ASCII format expected by the client: "word,count," for every
+     * word, followed by a newline.
+     *
+     * @param out Buffer to append to.
+     */
+    public void writeCsv(ByteBuilder out) {
+        for (int i = 0; i < size; i++) {
+            out.append(arena, offsets[i], lengths[i]);
+            out.append((byte) ',');
+            out.appendInt(counts[i]);
+            out.append((byte) ',');
+        }
+        out.append((byte) '\n');
+    }
+
+    /**
+     * @return Number of bytes {@link #writeBinary(ByteBuffer)} writes, including the frame length.
+     */
+    public int binarySize() {
+        int bytes = 4 + Protocol.varintSize(size);
+        for (int i = 0; i < size; i++) {
+            bytes += Protocol.varintSize(lengths[i]) + lengths[i] + Protocol.varintSize(counts[i]);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the table as a frame of the binary format, see {@link Protocol}.
+     *
+     * @param out Buffer to write to, with at least {@link #binarySize()} bytes remaining.
+     */
+    public void writeBinary(ByteBuffer out) {
+        int start = out.position();
+        out.putInt(0);
+        Protocol.putVarint(out, size);
+        for (int i = 0; i < size; i++) {
+            Protocol.putVarint(out, lengths[i]);
+            out.put(arena, offsets[i], lengths[i]);
+            Protocol.putVarint(out, counts[i]);
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    /**
+     * Looks up the IDs of the words of the table in the vocabulary, which assigns IDs to new
+     * words, and returns the size of the frame {@link #writeWordIds(ByteBuffer, BitSet, int[])}
+     * writes for a client that knows the given IDs.
+     *
+     * @param vocabulary The vocabulary of the server.
+     * @param known      IDs the client has already received.
+     * @param ids        Receives the ID of every word in the order of the table, -1 for a word
+     *                   without an ID, at least {@link #size()} long.
+     * @return Number of bytes of the frame, including the frame length.
+     */
+    public int wordIdsSize(Vocabulary vocabulary, BitSet known, int[] ids) {
+        int newWords = 0;
+        int bytes = 4;
+        for (int i = 0; i < size; i++) {
+            int id = vocabulary.id(arena, offsets[i], lengths[i], hashes[i]);
+            ids[i] = id;
+            if (id < 0) {
+                bytes += 1 + Protocol.varintSize(lengths[i]) + lengths[i];
+            } else {
+                if (!known.get(id)) {
+                    newWords++;
+                    bytes += Protocol.varintSize(id) + Protocol.varintSize(lengths[i]) + lengths[i];
+                }
+                bytes += Protocol.varintSize(id + 1);
+            }
+            bytes += Protocol.varintSize(counts[i]);
+        }
+        return bytes + Protocol.varintSize(newWords) + Protocol.varintSize(size);
+    }
+
+    /**
+     * Writes the table as a frame of the {@link Protocol#FORMAT_IDS} format: the words the
+     * client does not know yet with their IDs, followed by the IDs and the counts of all words
+     * of the table. The new IDs are added to the known ones.
+     *
+     * @param out   Buffer to write to, with at least the number of bytes remaining that
+     *              {@link #wordIdsSize(Vocabulary, BitSet, int[])} returned.
+     * @param known IDs the client has already received.
+     * @param ids   The IDs looked up by {@link #wordIdsSize(Vocabulary, BitSet, int[])}.
+     */
+    public void writeWordIds(ByteBuffer out, BitSet known, int[] ids) {
+        int start = out.position();
+        out.putInt(0);
+
+        int newWords = 0;
+        for (int i = 0; i < size; i++) {
+            if (ids[i] >= 0 && !known.get(ids[i])) {
+                newWords++;
+            }
+        }
+        Protocol.putVarint(out, newWords);
+        for (int i = 0; i < size; i++) {
+            if (ids[i] >= 0 && !known.get(ids[i])) {
+                known.set(ids[i]);
+                Protocol.putVarint(out, ids[i]);
+                Protocol.putVarint(out, lengths[i]);
+                out.put(arena, offsets[i], lengths[i]);
+            }
+        }
+
+        Protocol.putVarint(out, size);
+        for (int i = 0; i < size; i++) {
+            if (ids[i] < 0) {
+                out.put((byte) 0);
+                Protocol.putVarint(out, lengths[i]);
+                out.put(arena, offsets[i], lengths[i]);
+            } else {
+                Protocol.putVarint(out, ids[i] + 1);
+            }
+            Protocol.putVarint(out, counts[i]);
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    private boolean sameBytes(int arenaOff, byte[] buf, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            if (arena[arenaOff + i] != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growEntries() {
+        int capacity = counts.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int idx = spread(hashes[entry]) & mask;
+            while (slots[idx] != 0) {
+                idx = (idx + 1) & mask;
+            }
+            slots[idx] = entry + 1;
+        }
+    }
+
+    /**
+     * The hashes of short words differ mostly in their low bits, so the high bits are
+     * mixed in before the hash is reduced to a slot index.
+     */
+    static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
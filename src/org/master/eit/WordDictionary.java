@@ -0,0 +1,52 @@
+package org.master.eit;
+
+import java.util.Arrays;
+
+/**
+ * The words a client has received with the dictionary deltas of the responses in the
+ * {@link Protocol#FORMAT_IDS} format, by their IDs. The IDs are assigned by the server to
+ * all the words it has seen, so the IDs a client knows can be sparse. Only used by the
+ * thread reading the responses of the connection.
+ */
+public class WordDictionary {
+
+    private byte[][] words;
+    private int size;
+
+    public WordDictionary() {
+        this.words = new byte[1024][];
+    }
+
+    /**
+     * Adds a word received with a dictionary delta.
+     *
+     * @param id  ID of the word.
+     * @param buf Buffer holding the word.
+     * @param off Offset of the word in buf.
+     * @param len Length of the word in bytes.
+     */
+    public void put(int id, byte[] buf, int off, int len) {
+        if (id >= words.length) {
+            words = Arrays.copyOf(words, Math.max(id + 1, words.length * 2));
+        }
+        if (words[id] == null) {
+            size++;
+        }
+        words[id] = Arrays.copyOfRange(buf, off, off + len);
+    }
+
+    /**
+     * @param id ID of a word.
+     * @return The ASCII bytes of the word, null if it has not been received.
+     */
+    public byte[] get(int id) {
+        return id < words.length ? words[id] : null;
+    }
+
+    /**
+     * @return Number of words received.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,18 @@
+package org.master.eit;
+
+/**
+ * Receives the words found by a {@link WordTokenizer}. The word is handed over as a slice
+ * of a buffer owned by the tokenizer, it is only valid for the duration of the call.
+ */
+public interface WordSink {
+
+    /**
+     * Called once for every word of a document.
+     *
+     * @param buf  Buffer holding the lower case ASCII bytes of the word.
+     * @param off  Offset of the first byte of the word in buf.
+     * @param len  Length of the word in bytes.
+     * @param hash Hash of the word, equal to the hashCode() of the word as a String.
+     */
+    void word(byte[] buf, int off, int len, int hash);
+}
@@ -0,0 +1,441 @@
+package org.master.eit;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Splits an ASCII encoded document into words directly on its bytes, without decoding it
+ * into a String first. Lower casing, filtering to "a-z" and finding the word boundaries
+ * happens in a single pass over the input. The result is the same as the one of
+ * {@link WoCoServer#doWordCount(String, WordCountTable, boolean)}:
+ * characters outside of "a-z" are dropped (e.g., "alpha-beta" becomes "alphabeta") and
+ * words are separated by spaces.
+ *
+ * With HTML cleaning enabled, the tokenizer also skips tags in the same pass, which gives
+ * the same words as {@link WoCoServer#cleanDocument(String)} followed by the word count,
+ * but without building the cleaned document.
+ *
+ * If the Vector API is available, see {@link ByteClassifier}, the bytes of documents that
+ * are cleaned are classified 64 at a time and the tokenizer only stops at the runs of
+ * letters and the tag characters of a block: runs of letters are appended to the word in
+ * one go, and the content of tags is skipped up to the next '<' or '>'. Without cleaning
+ * there is nothing to skip, every letter still has to be hashed, and the vectorized path is
+ * not faster than the scalar loop, see TokenizerBenchmark. The scalar loops handle the bytes
+ * that do not fill a block and give the same words in the same order.
+ *
+ * A tokenizer keeps state between calls to {@link #feed(byte[], int, int)}, so a document
+ * can be passed in several chunks. It is not thread safe, every thread needs its own.
+ */
+public class WordTokenizer {
+
+    // null if the Vector API is not available
+    private static final ByteClassifier VECTORIZED = ByteClassifier.vectorized();
+
+    // 31^i for the runs of letters of a block
+    private static final int[] POWERS_OF_31 = new int[ByteClassifier.BLOCK_SIZE + 1];
+
+    // reads and writes 8 bytes of a byte array at once, byte 0 in the lowest bits
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // runs of letters up to this length are appended without a loop over their length
+    private static final int SHORT_RUN = 8;
+    // the weight of letter j of a run of n letters in its hash at n * SHORT_RUN + j
+    private static final int[] SHORT_RUN_WEIGHTS = new int[(SHORT_RUN + 1) * SHORT_RUN];
+
+    static {
+        POWERS_OF_31[0] = 1;
+        for (int i = 1; i < POWERS_OF_31.length; i++) {
+            POWERS_OF_31[i] = 31 * POWERS_OF_31[i - 1];
+        }
+        for (int n = 0; n <= SHORT_RUN; n++) {
+            for (int j = 0; j < n; j++) {
+                SHORT_RUN_WEIGHTS[n * SHORT_RUN + j] = POWERS_OF_31[n - 1 - j];
+            }
+        }
+    }
+
+    private final WordSink sink;
+
+    // classifies blocks of bytes, null for the scalar loops only
+    private final ByteClassifier classifier;
+    // whether the classifier is used without cleaning as well
+    private final boolean classifyText;
+    private final long[] masks;
+
+    // the word currently being assembled, lower case
+    private byte[] word;
+    private int wordLen;
+    private int wordHash;
+
+    // number of words emitted for the current document
+    private int wordCnt;
+
+    // HTML cleaning state
+    private boolean cleanHtml;
+    private int tagDepth;
+    private boolean docBeginning;
+    private ByteBuilder beginning;
+
+    /**
+     * Creates a tokenizer that passes all words to the given sink.
+     *
+     * @param sink Receiver of the words.
+     */
+    public WordTokenizer(WordSink sink) {
+        this(sink, VECTORIZED, false);
+    }
+
+    /**
+     * Creates a tokenizer that uses the given classifier with and without cleaning, e.g. to
+     * compare the vectorized path with the scalar one.
+     *
+     * @param sink       Receiver of the words.
+     * @param classifier Classifier of the blocks, null for the scalar loops only.
+     */
+    public WordTokenizer(WordSink sink, ByteClassifier classifier) {
+        this(sink, classifier, true);
+    }
+
+    private WordTokenizer(WordSink sink, ByteClassifier classifier, boolean classifyText) {
+        this.sink = sink;
+        this.classifier = classifier;
+        this.classifyText = classifyText;
+        this.masks = new long[3];
+        this.word = new byte[64];
+        this.beginning = new ByteBuilder(64);
+    }
+
+    /**
+     * @return The classifier the tokenizers use by default, null if the Vector API is not
+     * available.
+     */
+    public static ByteClassifier defaultClassifier() {
+        return VECTORIZED;
+    }
+
+    /**
+     * Tokenizes a complete document and passes its words to the sink.
+     *
+     * @param doc       Buffer holding the document.
+     * @param off       Offset of the document in doc.
+     * @param len       Length of the document in bytes.
+     * @param cleanHtml Whether HTML tags should be skipped.
+     */
+    public void tokenize(byte[] doc, int off, int len, boolean cleanHtml) {
+        reset(cleanHtml);
+        if (cleanHtml) {
+            // the whole document is known, so we can decide upfront what happens to the
+            // text before the first tag instead of buffering it
+            skipBeginning(firstTagChar(doc, off, len));
+        }
+        feed(doc, off, len);
+        finish();
+    }
+
+    /**
+     * Tokenizes a part of a document that starts at a word boundary and ends at one. The
+     * caller is responsible for the state at the start of the part: its tag depth, as well
+     * as what happens to the text before the first tag of the document, see
+     * {@link #initialTagDepth(byte[], int, int)}. Unlike {@link #tokenize(byte[], int, int, boolean)},
+     * no empty word is emitted if the part does not contain any word.
+     *
+     * @param doc       Buffer holding the document.
+     * @param off       Offset of the part in doc.
+     * @param len       Length of the part in bytes.
+     * @param cleanHtml Whether HTML tags should be skipped.
+     * @param tagDepth  Number of open tags at the start of the part.
+     * @return Number of words found in the part.
+     */
+    public int tokenizePart(byte[] doc, int off, int len, boolean cleanHtml, int tagDepth) {
+        reset(cleanHtml);
+        docBeginning = false;
+        this.tagDepth = tagDepth;
+        feed(doc, off, len);
+        emitWord();
+        int words = wordCnt;
+        reset(cleanHtml);
+        return words;
+    }
+
+    /**
+     * Returns the tag depth a document starts with. The text before the first tag is
+     * treated as if it was inside a tag when cleaning would drop it, see skipBeginning.
+     *
+     * @param doc Buffer holding the document.
+     * @param off Offset of the document in doc.
+     * @param len Length of the document in bytes.
+     * @return 0 if the document starts with visible text, 1 otherwise.
+     */
+    public static int initialTagDepth(byte[] doc, int off, int len) {
+        return firstTagChar(doc, off, len) == '<' ? 0 : 1;
+    }
+
+    /**
+     * Discards any state left over from a previous document and prepares for a new one.
+     *
+     * @param cleanHtml Whether HTML tags should be skipped.
+     */
+    public void reset(boolean cleanHtml) {
+        this.cleanHtml = cleanHtml;
+        wordLen = 0;
+        wordHash = 0;
+        wordCnt = 0;
+        tagDepth = 0;
+        docBeginning = cleanHtml;
+        beginning.clear();
+    }
+
+    /**
+     * Tokenizes the next chunk of the current document. A word or a tag at the end of the
+     * chunk is continued by the next chunk.
+     *
+     * @param buf Buffer holding the chunk.
+     * @param off Offset of the chunk in buf.
+     * @param len Length of the chunk in bytes.
+     */
+    public void feed(byte[] buf, int off, int len) {
+        if (classifier != null && (cleanHtml || classifyText) && len >= ByteClassifier.BLOCK_SIZE) {
+            feedBlocks(buf, off, len);
+        } else if (cleanHtml) {
+            feedHtml(buf, off, len);
+        } else {
+            feedText(buf, off, len);
+        }
+    }
+
+    /**
+     * Completes the current document. Emits the last word and, to stay compatible with
+     * String.split(), a single empty word if the document did not contain any word.
+     */
+    public void finish() {
+        // text before the first tag is dropped if the document has no tag at all
+        emitWord();
+        if (wordCnt == 0) {
+            sink.word(word, 0, 0, 0);
+        }
+        reset(cleanHtml);
+    }
+
+    private void feedText(byte[] buf, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            int cc = buf[i];
+            // setting the 0x20 bit lower cases 'A'-'Z' and leaves 'a'-'z' as they are
+            int lc = cc | 0x20;
+            if (lc >= 'a' && lc <= 'z') {
+                appendToWord(lc);
+            } else if (cc == ' ') {
+                emitWord();
+            }
+        }
+    }
+
+    /**
+     * Same as feedText, but only for characters outside of tags. A tag does not end a
+     * word, e.g., "al<b>pha</b>" is counted as "alpha", as the cleaning removes the tags
+     * before counting.
+     */
+    private void feedHtml(byte[] buf, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            int cc = buf[i];
+            if (cc == '<') {
+                if (docBeginning) {
+                    skipBeginning('<');
+                }
+                tagDepth++;
+            } else if (cc == '>') {
+                if (docBeginning) {
+                    skipBeginning('>');
+                }
+                if (tagDepth > 0) {
+                    tagDepth--;
+                }
+            } else if (tagDepth == 0) {
+                int lc = cc | 0x20;
+                if (lc >= 'a' && lc <= 'z') {
+                    if (docBeginning) {
+                        beginning.append((byte) lc);
+                    } else {
+                        appendToWord(lc);
+                    }
+                } else if (cc == ' ') {
+                    if (docBeginning) {
+                        beginning.append((byte) ' ');
+                    } else {
+                        emitWord();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as feedText and feedHtml, but for every block the classifier marks the letters,
+     * spaces and, with cleaning, the tag characters, and the loop jumps from one run of
+     * letters or tag character to the next. The spaces in between only matter as a whole.
+     * Inside a tag only the tag characters matter. A '<' or '>' in the text before the first
+     * tag is left to the scalar loop, which decides what happens to that text.
+     */
+    private void feedBlocks(byte[] buf, int off, int len) {
+        int end = off + len;
+        int i = off;
+        if (docBeginning) {
+            int stop = i;
+            while (stop < end && buf[stop] != '<' && buf[stop] != '>') {
+                stop++;
+            }
+            stop = Math.min(stop + 1, end);
+            feedHtml(buf, i, stop - i);
+            i = stop;
+        }
+
+        for (; i + ByteClassifier.BLOCK_SIZE <= end; i += ByteClassifier.BLOCK_SIZE) {
+            classifier.classify(buf, i, masks);
+            long letters = masks[ByteClassifier.LETTERS];
+            long spaces = masks[ByteClassifier.SPACES];
+            // without cleaning, '<' and '>' are dropped like any other character
+            long tags = cleanHtml ? masks[ByteClassifier.TAGS] : 0;
+
+            int pos = 0;
+            while (pos < ByteClassifier.BLOCK_SIZE) {
+                long from = -1L << pos;
+                if (tagDepth > 0) {
+                    long next = tags & from;
+                    if (next == 0) {
+                        break;
+                    }
+                    pos = Long.numberOfTrailingZeros(next);
+                    tagDepth += (buf[i + pos] == '<') ? 1 : -1;
+                    pos++;
+                    continue;
+                }
+
+                long next = (letters | tags) & from;
+                int stop = (next == 0) ? ByteClassifier.BLOCK_SIZE : Long.numberOfTrailingZeros(next);
+                // a space before the next letter or tag character ends the current word
+                long gap = (stop == ByteClassifier.BLOCK_SIZE) ? from : from & ((1L << stop) - 1);
+                if ((spaces & gap) != 0) {
+                    emitWord();
+                }
+                if (stop == ByteClassifier.BLOCK_SIZE) {
+                    break;
+                }
+
+                if ((tags >>> stop & 1) != 0) {
+                    // a '>' outside of a tag is dropped
+                    if (buf[i + stop] == '<') {
+                        tagDepth++;
+                    }
+                    pos = stop + 1;
+                } else {
+                    // the shift fills with zeros, so the run ends at the end of the block
+                    int run = Long.numberOfTrailingZeros(~(letters >>> stop));
+                    if (run <= SHORT_RUN && stop + SHORT_RUN <= ByteClassifier.BLOCK_SIZE) {
+                        appendShortRun(buf, i + stop, run);
+                    } else {
+                        appendRun(buf, i + stop, run);
+                    }
+                    pos = stop + run;
+                }
+            }
+        }
+
+        if (cleanHtml) {
+            feedHtml(buf, i, end - i);
+        } else {
+            feedText(buf, i, end - i);
+        }
+    }
+
+    /**
+     * Leaves the beginning of the document, the part before the first '<' or '>'. The
+     * cleaning keeps this text only if the first of the two is a '<'. Otherwise it is
+     * dropped as if it was inside a tag, which the closing '>' then ends.
+     *
+     * @param tagChar The first '<' or '>' of the document, 0 if there is none.
+     */
+    private void skipBeginning(int tagChar) {
+        docBeginning = false;
+        if (tagChar == '<') {
+            feedText(beginning.array(), 0, beginning.length());
+        } else {
+            tagDepth = 1;
+        }
+        beginning.clear();
+    }
+
+    private static int firstTagChar(byte[] doc, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (doc[i] == '<' || doc[i] == '>') {
+                return doc[i];
+            }
+        }
+        return 0;
+    }
+
+    private void appendToWord(int lc) {
+        if (wordLen == word.length) {
+            byte[] larger = new byte[word.length * 2];
+            System.arraycopy(word, 0, larger, 0, wordLen);
+            word = larger;
+        }
+        word[wordLen++] = (byte) lc;
+        wordHash = 31 * wordHash + lc;
+    }
+
+    /**
+     * Appends a run of letters, upper or lower case, to the word. The hash is the same as
+     * the one of appendToWord, but every letter is multiplied by its own power of 31, so the
+     * multiplications do not wait for each other.
+     */
+    private void appendRun(byte[] buf, int off, int len) {
+        if (wordLen + len > word.length) {
+            word = Arrays.copyOf(word, Math.max(word.length * 2, wordLen + len));
+        }
+        byte[] w = word;
+        int wl = wordLen;
+        int hash = wordHash * POWERS_OF_31[len];
+        for (int j = 0; j < len; j++) {
+            int lc = buf[off + j] | 0x20;
+            w[wl + j] = (byte) lc;
+            hash += lc * POWERS_OF_31[len - 1 - j];
+        }
+        wordLen = wl + len;
+        wordHash = hash;
+    }
+
+    /**
+     * Same as appendRun for a run of at most SHORT_RUN letters that is followed by enough
+     * bytes of the block to always process SHORT_RUN bytes: the bytes after the run are
+     * copied behind the word but not counted, and their weight in the hash is 0. This
+     * avoids a loop whose length changes with every word.
+     */
+    private void appendShortRun(byte[] buf, int off, int len) {
+        if (wordLen + SHORT_RUN > word.length) {
+            word = Arrays.copyOf(word, word.length * 2 + SHORT_RUN);
+        }
+        int wl = wordLen;
+        int weights = len * SHORT_RUN;
+        int hash = wordHash * POWERS_OF_31[len];
+        long letters = (long) LONGS.get(buf, off) | 0x2020202020202020L;
+        LONGS.set(word, wl, letters);
+        for (int j = 0; j < SHORT_RUN; j++) {
+            hash += (int) (letters >>> (8 * j) & 0xff) * SHORT_RUN_WEIGHTS[weights + j];
+        }
+        wordLen = wl + len;
+        wordHash = hash;
+    }
+
+    private void emitWord() {
+        if (wordLen > 0) {
+            sink.word(word, 0, wordLen, wordHash);
+            wordCnt++;
+            wordLen = 0;
+            wordHash = 0;
+        }
+    }
+}
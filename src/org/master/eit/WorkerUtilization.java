@@ -0,0 +1,68 @@
+package org.master.eit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of how much of the time every worker thread spends processing documents.
+ */
+public class WorkerUtilization {
+
+    private final AtomicLongArray busyNanos;
+    private final AtomicLongArray taskCount;
+    private volatile long startTime;
+
+    /**
+     * @param workers Number of worker threads.
+     */
+    public WorkerUtilization(int workers) {
+        busyNanos = new AtomicLongArray(workers);
+        taskCount = new AtomicLongArray(workers);
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Records a task processed by a worker.
+     *
+     * @param worker Index of the worker.
+     * @param nanos  Time the worker spent on the task.
+     */
+    public void record(int worker, long nanos) {
+        busyNanos.addAndGet(worker, nanos);
+        taskCount.incrementAndGet(worker);
+    }
+
+    /**
+     * Starts a new measurement interval.
+     */
+    public void reset() {
+        for (int i = 0; i < busyNanos.length(); i++) {
+            busyNanos.set(i, 0);
+            taskCount.set(i, 0);
+        }
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * @param worker Index of the worker.
+     * @return Share of the time since the last reset the worker was busy, between 0 and 1.
+     */
+    public float getUtilization(int worker) {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed > 0 ? (float) busyNanos.get(worker) / elapsed : 0.0f;
+    }
+
+    /**
+     * @return One line with the utilization [%] and the number of tasks of every worker,
+     * e.g. "Worker utilization [%]: 0,45.2,1032;1,40.1,998".
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("Worker utilization [%]: ");
+        for (int i = 0; i < busyNanos.length(); i++) {
+            if (i > 0) {
+                sb.append(";");
+            }
+            sb.append(i).append(",").append(getUtilization(i) * 100).append(",").append(taskCount.get(i));
+        }
+        return sb.toString();
+    }
+}